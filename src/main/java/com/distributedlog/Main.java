@@ -4,30 +4,28 @@ import com.distributedlog.messages.AppendEntries;
 import com.distributedlog.messages.RequestVote;
 import com.distributedlog.network.MessageClient;
 import com.distributedlog.network.MessageServer;
-import com.distributedlog.node.*;
+import com.distributedlog.node.RaftHost;
 
 import java.util.Arrays;
 import java.util.List;
 
 public class Main {
+    /**Raft groups every node runs, keys are spread over them; 1 runs the single log of before*/
+    private static final int GROUPS = Integer.getInteger("distributedlog.groups", 1);
+
     public static void main(String[] args) {
         List<Integer> nodePorts = Arrays.asList(5001, 5002, 5003);
 
         for (int port : nodePorts) {
-            /**Detremine peer nodes except this node**/
-            List<Integer> peers = nodePorts.stream().filter(p -> p != port).toList();
-
-            /**Creates nodetimer, electionmanager and nodestate for each node**/
-            NodeState nodeState = new NodeState("Node" + port);
-            ElectionManager electionManager = new ElectionManager(nodeState, port, peers);
-            NodeTimers nodeTimers = new NodeTimers(nodeState, electionManager);
+            /**Creates the nodestate, electionmanager, nodetimer and group commit stage of each group on this node**/
+            RaftHost host = new RaftHost(port, nodePorts, GROUPS);
 
-            /**Start message server for the node**/
-            MessageServer server = new MessageServer(port, nodeState, nodeTimers);
+            /**Start message server for the node, shared by all its groups**/
+            MessageServer server = new MessageServer(port, host);
             new Thread(server).start();
 
-            /**Start election time for the node**/
-            nodeTimers.startElectionTimer();
+            /**Start group commit and election timers for every group of the node**/
+            host.start();
 
             /**Small delays to avoid startup collisions**/
 
@@ -1,11 +1,14 @@
 package com.distributedlog.client;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
 
 public class ClientInterface {
     private static final Gson gson = new Gson();
@@ -20,12 +23,19 @@ public class ClientInterface {
         System.out.print("Enter node port (5001, 5002, 5003): ");
         int currentLeaderPort = Integer.parseInt(scanner.nextLine().trim());
 
+        /**Writes go through the client library, which follows redirects to the leader by itself*/
+        List<Integer> ports = new ArrayList<>(List.of(5001, 5002, 5003));
+        ports.remove(Integer.valueOf(currentLeaderPort));
+        ports.add(0, currentLeaderPort);
+        RaftClient raftClient = new RaftClient(host, ports);
+
         System.out.println("\n Connected to Raft Node " + host + ":" + currentLeaderPort);
         System.out.println("Use below Commands:");
         System.out.println(" 1. Send [Logs]           → send command to the leader following the followers");
         System.out.println(" 2. Leader                → get leader info of this node");
         System.out.println(" 3. Nodes information     → get leader info of all nodes");
-        System.out.println(" 4. Exit                  → quit client\n");
+        System.out.println(" 4. Get [key]             → read a key from the leader's state machine");
+        System.out.println(" 5. Exit                  → quit client\n");
 
         while (true) {
             System.out.print("> ");
@@ -42,34 +52,30 @@ public class ClientInterface {
                 }
             } else if (input.startsWith("send ")) {
                 String command = input.substring(5).trim();
-                ClientCommand msg = new ClientCommand("set", command);
-                currentLeaderPort = sendCommandWithRedirect(host, currentLeaderPort, msg);
+                sendCommand(raftClient, command);
+                currentLeaderPort = raftClient.getLeaderPort();
+            } else if (input.startsWith("get ")) {
+                currentLeaderPort = raftClient.getLeaderPort();
+                sendMessage(host, currentLeaderPort, gson.toJson(new GetQuery(input.substring(4).trim())));
             } else {
-                System.out.println("Unknown command. Use 'send [log]' or 'leader' or 'nodes information'");
+                System.out.println("Unknown command. Use 'send [log]', 'get [key]', 'leader' or 'nodes information'");
             }
         }
 
+        raftClient.close();
         scanner.close();
     }
 
-    /**Sends command and handles the redirects automatically**/
-    private static int sendCommandWithRedirect(String host, int port, ClientCommand msg) {
+    /**Sends command and waits for it to commit, redirects are handled by the client library**/
+    private static void sendCommand(RaftClient raftClient, String command) {
         try {
-            String response = sendMessage(host, port, gson.toJson(msg));
-            if (response != null) {
-                JsonObject json = gson.fromJson(response, JsonObject.class);
-                if (json.has("status") && "redirect".equals(json.get("status").getAsString())
-                        && json.has("leader")) {
-                    String leaderId = json.get("leader").getAsString();
-                    int leaderPort = extractPortFromLeaderId(leaderId);
-                    System.out.println(" Redirecting to leader " + leaderId + " on port " + leaderPort);
-                    return sendCommandWithRedirect(host, leaderPort, msg); // resend
-                }
-            }
-        } catch (Exception e) {
-            System.out.println(" Error sending command: " + e.getMessage());
+            long index = raftClient.submit(command.getBytes(StandardCharsets.UTF_8)).get();
+            System.out.println(" Leader " + raftClient.getLeaderPort() + " -> Command committed at index " + index);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println(" Error sending command: " + e.getCause().getMessage());
         }
-        return port; // return port used (leader or self)
     }
 
     /**Sends messages to a node and returns the response**/
@@ -92,22 +98,15 @@ public class ClientInterface {
         return null;
     }
 
-    /**Converts the leaderID to port number**/
-    private static int extractPortFromLeaderId(String leaderId) {
-        return Integer.parseInt(leaderId.replaceAll("\\D+", ""));
+    static class LeaderQuery {
+        private final boolean getLeader = true;
     }
 
-    static class ClientCommand {
-        private final String clientCommand;
-        private final String data;
+    static class GetQuery {
+        private final String get;
 
-        ClientCommand(String clientCommand, String data) {
-            this.clientCommand = clientCommand;
-            this.data = data;
+        GetQuery(String key) {
+            this.get = key;
         }
     }
-
-    static class LeaderQuery {
-        private final boolean getLeader = true;
-    }
 }
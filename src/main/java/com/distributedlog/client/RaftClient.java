@@ -0,0 +1,207 @@
+package com.distributedlog.client;
+
+import com.distributedlog.messages.ClientBatch;
+import com.distributedlog.messages.ClientBatchResponse;
+import com.distributedlog.network.MessageClient;
+import com.distributedlog.node.NodeTimers;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous client for the replicated log.
+ * submit() only queues the command; a sender thread packs whatever is queued into one ClientBatch and keeps several
+ * batches in flight on a single connection to the cached leader. Redirects and unreachable nodes are retried
+ * transparently against the next candidate. Delivery is at-least-once: a command appended by a leader that fails
+ * before answering is sent again and may end up in the log twice.
+ */
+public class RaftClient implements Closeable {
+    private static final int MAX_BATCH = Integer.getInteger("distributedlog.client.maxBatch", 1024);
+    private static final int MAX_INFLIGHT_BATCHES = Integer.getInteger("distributedlog.client.maxInflightBatches", 32);
+    /**A write keeps being retried until this long after submit, enough to ride out one full election*/
+    private static final long RETRY_DEADLINE_MS = Long.getLong("distributedlog.client.retryDeadlineMs",
+            NodeTimers.ELECTION_TIMEOUT_MIN_MS + NodeTimers.ELECTION_TIMEOUT_JITTER_MS + 5000);
+    /**Fallback cap, only reached when redirects bounce the write around without delay*/
+    private static final int MAX_ATTEMPTS = Integer.getInteger("distributedlog.client.maxAttempts", 200);
+    private static final long RETRY_DELAY_MS = Long.getLong("distributedlog.client.retryDelayMs", 100);
+    private static final long MAX_RETRY_DELAY_MS = Long.getLong("distributedlog.client.maxRetryDelayMs", 1000);
+
+    private final String host;
+    private final List<Integer> ports;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inflightBatches = new Semaphore(MAX_INFLIGHT_BATCHES);
+    private final ScheduledExecutorService retryScheduler;
+    private final Thread sender;
+    private volatile int leaderPort;
+    private volatile boolean closed;
+
+    /**ports lists every node of the cluster, the first one is tried first*/
+    public RaftClient(String host, List<Integer> ports) {
+        if (ports.isEmpty()) throw new IllegalArgumentException("At least one node port is needed");
+        this.host = host;
+        this.ports = List.copyOf(ports);
+        this.leaderPort = ports.get(0);
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "raft-client-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        this.sender = new Thread(this::sendLoop, "raft-client-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**Queues a command; the future completes with its log index once it is committed*/
+    public CompletableFuture<Long> submit(byte[] command) {
+        if (command.length == 0) {
+            /**Nodes refuse the whole batch holding it*/
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Empty command"));
+        }
+        PendingWrite write = new PendingWrite(new String(command, StandardCharsets.UTF_8));
+        if (closed) {
+            write.future.completeExceptionally(new IllegalStateException("Client is closed"));
+        } else {
+            queue.add(write);
+        }
+        return write.future;
+    }
+
+    /**Port of the node currently believed to be the leader*/
+    public int getLeaderPort() {
+        return leaderPort;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        sender.interrupt();
+        retryScheduler.shutdownNow();
+        List<PendingWrite> unsent = new ArrayList<>();
+        queue.drainTo(unsent);
+        for (PendingWrite write : unsent) {
+            write.future.completeExceptionally(new IllegalStateException("Client is closed"));
+        }
+    }
+
+    private void sendLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                inflightBatches.acquire();
+                send(new ArrayList<>(batch));
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PendingWrite write : batch) {
+            write.future.completeExceptionally(new IllegalStateException("Client is closed"));
+        }
+    }
+
+    private void send(List<PendingWrite> batch) {
+        int port = leaderPort;
+        List<String> commands = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) commands.add(write.command);
+
+        MessageClient.clientBatch(host, port, new ClientBatch(commands)).whenComplete((resp, error) -> {
+            inflightBatches.release();
+            if (error != null) {
+                /**The node is down or unreachable, try the next one*/
+                moveLeader(port, null);
+                retry(batch, error, true);
+                return;
+            }
+
+            long[] indexes = resp.getIndexes();
+            List<PendingWrite> failed = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                if (indexes != null && indexes[i] > 0) {
+                    batch.get(i).future.complete(indexes[i]);
+                } else {
+                    failed.add(batch.get(i));
+                }
+            }
+            if (failed.isEmpty()) return;
+
+            Exception cause = new IllegalStateException("Node " + port + " answered " + resp.getStatus());
+            if ("redirect".equals(resp.getStatus())) {
+                boolean leaderKnown = moveLeader(port, resp.getLeaderId());
+                retry(failed, cause, !leaderKnown);
+            } else {
+                retry(failed, cause, true);
+            }
+        });
+    }
+
+    /**
+     * Puts the writes back in the queue, at once when a new leader is already known, otherwise after a delay that
+     * doubles with each delayed attempt. A write fails once its deadline has passed.
+     */
+    private void retry(List<PendingWrite> writes, Throwable cause, boolean delay) {
+        long now = System.nanoTime();
+        List<PendingWrite> again = new ArrayList<>();
+        int backoffs = 0;
+        for (PendingWrite write : writes) {
+            if (closed || now - write.deadlineNanos >= 0 || ++write.attempts >= MAX_ATTEMPTS) {
+                write.future.completeExceptionally(cause);
+            } else {
+                if (delay) backoffs = Math.max(backoffs, ++write.backoffs);
+                again.add(write);
+            }
+        }
+        if (again.isEmpty()) return;
+        long delayMs = delay ? Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(backoffs - 1, 20)) : 0;
+        if (delayMs == 0) {
+            queue.addAll(again);
+        } else {
+            retryScheduler.schedule(() -> queue.addAll(again), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Updates the cached leader after fromPort failed or redirected. Returns true when the redirect named another node,
+     * otherwise the next node in the list becomes the candidate.
+     */
+    private synchronized boolean moveLeader(int fromPort, String leaderId) {
+        if (leaderPort != fromPort) return true; // someone already moved on
+        int named = portOf(leaderId);
+        if (named != fromPort && ports.contains(named)) {
+            leaderPort = named;
+            System.out.println("[RaftClient] Redirected to leader on port " + named);
+            return true;
+        }
+        leaderPort = ports.get((ports.indexOf(fromPort) + 1) % ports.size());
+        return false;
+    }
+
+    /**Leader ids carry the node's port, e.g. Leader5001 or Node5001*/
+    private static int portOf(String leaderId) {
+        if (leaderId == null) return -1;
+        String digits = leaderId.replaceAll("\\D+", "");
+        return digits.isEmpty() ? -1 : Integer.parseInt(digits);
+    }
+
+    private static class PendingWrite {
+        private final String command;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_DEADLINE_MS);
+        private int attempts;
+        private int backoffs;
+
+        PendingWrite(String command) {
+            this.command = command;
+        }
+    }
+}
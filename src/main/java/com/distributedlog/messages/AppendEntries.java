@@ -8,7 +8,10 @@ public class AppendEntries {
     private int prevLogIndex;
     private int prevLogTerm;
     private List<String> entries;
+    private int[] entryTerms; /**Term of each entry, entries may come from older terms than the leader's*/
     private int leaderCommit;
+    /**Codec the entries arrived compressed with, null when they were sent as they are*/
+    private String codec;
 
     public AppendEntries(int term, String leaderId, int prevLogIndex, int prevLogTerm,
                          List<String> entries, int leaderCommit) {
@@ -20,6 +23,12 @@ public class AppendEntries {
         this.leaderCommit = leaderCommit;
     }
 
+    public AppendEntries(int term, String leaderId, int prevLogIndex, int prevLogTerm,
+                         List<String> entries, int[] entryTerms, int leaderCommit) {
+        this(term, leaderId, prevLogIndex, prevLogTerm, entries, leaderCommit);
+        this.entryTerms = entryTerms;
+    }
+
     public AppendEntries(int term, String leaderId) {
         this(term, leaderId, 0, 0, null, 0);
     }
@@ -29,14 +38,18 @@ public class AppendEntries {
     public int getPrevLogIndex() { return prevLogIndex; }
     public int getPrevLogTerm() { return prevLogTerm; }
     public List<String> getEntries() { return entries; }
+    public int[] getEntryTerms() { return entryTerms; }
     public int getLeaderCommit() { return leaderCommit; }
+    public String getCodec() { return codec; }
 
     public void setTerm(int term) { this.term = term; }
     public void setLeaderId(String leaderId) { this.leaderId = leaderId; }
     public void setPrevLogIndex(int prevLogIndex) { this.prevLogIndex = prevLogIndex; }
     public void setPrevLogTerm(int prevLogTerm) { this.prevLogTerm = prevLogTerm; }
     public void setEntries(List<String> entries) { this.entries = entries; }
+    public void setEntryTerms(int[] entryTerms) { this.entryTerms = entryTerms; }
     public void setLeaderCommit(int leaderCommit) { this.leaderCommit = leaderCommit; }
+    public void setCodec(String codec) { this.codec = codec; }
 
     @Override
     public String toString() {
@@ -45,8 +58,9 @@ public class AppendEntries {
                 ", leaderId='" + leaderId + '\'' +
                 ", prevLogIndex=" + prevLogIndex +
                 ", prevLogTerm=" + prevLogTerm +
-                ", entries=" + entries +
+                ", entries=" + (entries == null ? 0 : entries.size()) +
                 ", leaderCommit=" + leaderCommit +
+                (codec != null ? ", codec=" + codec : "") +
                 '}';
     }
 }
@@ -4,14 +4,26 @@ public class AppendEntriesResponse {
     private int term;
     private boolean success;
     private int matchIndex; /**Index of the last log entry matched on the follower*/
+    /**On a rejection: term of the follower's entry at prevLogIndex, 0 when its log ends before prevLogIndex*/
+    private int conflictTerm;
+    /**On a rejection: first index of conflictTerm in the follower's log, or its last index + 1 when conflictTerm is 0*/
+    private int conflictIndex;
 
     public AppendEntriesResponse(int term, boolean success, int matchIndex) {
+        this(term, success, matchIndex, 0, 0);
+    }
+
+    public AppendEntriesResponse(int term, boolean success, int matchIndex, int conflictTerm, int conflictIndex) {
         this.term = term;
         this.success = success;
         this.matchIndex = matchIndex;
+        this.conflictTerm = conflictTerm;
+        this.conflictIndex = conflictIndex;
     }
 
     public int getTerm() { return term; }
     public boolean isSuccess() { return success; }
     public int getMatchIndex() { return matchIndex; }
+    public int getConflictTerm() { return conflictTerm; }
+    public int getConflictIndex() { return conflictIndex; }
 }
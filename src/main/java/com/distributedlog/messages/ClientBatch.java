@@ -0,0 +1,21 @@
+package com.distributedlog.messages;
+
+import java.util.List;
+
+/**Many client commands sent in one request; each one is committed as its own log entry*/
+public class ClientBatch {
+    private List<String> commands;
+
+    public ClientBatch(List<String> commands) {
+        this.commands = commands;
+    }
+
+    public List<String> getCommands() { return commands; }
+
+    @Override
+    public String toString() {
+        return "ClientBatch{" +
+                "commands=" + (commands == null ? 0 : commands.size()) +
+                '}';
+    }
+}
@@ -0,0 +1,21 @@
+package com.distributedlog.messages;
+
+/**
+ * Outcome of a ClientBatch. indexes holds the log index of every command in request order, -1 for commands that
+ * were not committed; status is "ok" when all were, otherwise "redirect" (with the leader if known) or "error".
+ */
+public class ClientBatchResponse {
+    private String status;
+    private String leaderId;
+    private long[] indexes;
+
+    public ClientBatchResponse(String status, String leaderId, long[] indexes) {
+        this.status = status;
+        this.leaderId = leaderId;
+        this.indexes = indexes;
+    }
+
+    public String getStatus() { return status; }
+    public String getLeaderId() { return leaderId; }
+    public long[] getIndexes() { return indexes; }
+}
@@ -0,0 +1,17 @@
+package com.distributedlog.messages;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Commands whose UTF-8 encoding is already at hand, such as a range of the leader's log. The binary codec writes
+ * these bytes straight to the wire; get(i) still decodes a String for code that needs one.
+ */
+public interface CommandBytes extends List<String> {
+
+    /**Length in bytes of command i*/
+    int byteLength(int i);
+
+    /**Copies the bytes of command i into out*/
+    void writeTo(int i, ByteBuffer out);
+}
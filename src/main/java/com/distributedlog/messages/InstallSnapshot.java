@@ -0,0 +1,46 @@
+package com.distributedlog.messages;
+
+/**
+ * One chunk of a snapshot sent by the leader to a follower whose nextIndex fell behind the compacted log prefix.
+ * Chunks are sent in order; data holds the Base64 encoded bytes starting at offset and done marks the last chunk.
+ */
+public class InstallSnapshot {
+    private int term;
+    private String leaderId;
+    private int lastIncludedIndex;
+    private int lastIncludedTerm;
+    private long offset;
+    private String data;
+    private boolean done;
+
+    public InstallSnapshot(int term, String leaderId, int lastIncludedIndex, int lastIncludedTerm,
+                           long offset, String data, boolean done) {
+        this.term = term;
+        this.leaderId = leaderId;
+        this.lastIncludedIndex = lastIncludedIndex;
+        this.lastIncludedTerm = lastIncludedTerm;
+        this.offset = offset;
+        this.data = data;
+        this.done = done;
+    }
+
+    public int getTerm() { return term; }
+    public String getLeaderId() { return leaderId; }
+    public int getLastIncludedIndex() { return lastIncludedIndex; }
+    public int getLastIncludedTerm() { return lastIncludedTerm; }
+    public long getOffset() { return offset; }
+    public String getData() { return data; }
+    public boolean isDone() { return done; }
+
+    @Override
+    public String toString() {
+        return "InstallSnapshot{" +
+                "term=" + term +
+                ", leaderId='" + leaderId + '\'' +
+                ", lastIncludedIndex=" + lastIncludedIndex +
+                ", lastIncludedTerm=" + lastIncludedTerm +
+                ", offset=" + offset +
+                ", done=" + done +
+                '}';
+    }
+}
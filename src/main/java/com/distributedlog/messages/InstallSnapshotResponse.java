@@ -0,0 +1,14 @@
+package com.distributedlog.messages;
+
+public class InstallSnapshotResponse {
+    private int term;
+    private boolean success; /**False when the chunk did not continue the snapshot being received*/
+
+    public InstallSnapshotResponse(int term, boolean success) {
+        this.term = term;
+        this.success = success;
+    }
+
+    public int getTerm() { return term; }
+    public boolean isSuccess() { return success; }
+}
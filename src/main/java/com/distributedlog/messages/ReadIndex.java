@@ -0,0 +1,17 @@
+package com.distributedlog.messages;
+
+/**Sent by a follower to the leader to obtain a read index for a linearizable read it serves itself*/
+public class ReadIndex {
+    private String followerId;
+
+    public ReadIndex(String followerId) {
+        this.followerId = followerId;
+    }
+
+    public String getFollowerId() { return followerId; }
+
+    @Override
+    public String toString() {
+        return "ReadIndex{followerId='" + followerId + "'}";
+    }
+}
@@ -0,0 +1,21 @@
+package com.distributedlog.messages;
+
+/**
+ * The leader's commitIndex, confirmed by a quorum after the request arrived. A follower that has applied up to
+ * readIndex can answer the read. success is false when the node asked is not the leader; leaderId names the one it knows.
+ */
+public class ReadIndexResponse {
+    private boolean success;
+    private int readIndex;
+    private String leaderId;
+
+    public ReadIndexResponse(boolean success, int readIndex, String leaderId) {
+        this.success = success;
+        this.readIndex = readIndex;
+        this.leaderId = leaderId;
+    }
+
+    public boolean isSuccess() { return success; }
+    public int getReadIndex() { return readIndex; }
+    public String getLeaderId() { return leaderId; }
+}
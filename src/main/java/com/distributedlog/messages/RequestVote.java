@@ -3,10 +3,26 @@ package com.distributedlog.messages;
 public class RequestVote {
     public int term;
     public String candidateId;
+    /**Index and term of the candidate's last entry, a vote only goes to a log at least as up to date as the voter's*/
+    public int lastLogIndex;
+    public int lastLogTerm;
+    /**Asks whether the vote would be granted for term without anyone changing their term or vote*/
+    public boolean preVote;
+    /**Sent after a TimeoutNow from the leader, voters do not wait for the leader to go quiet first*/
+    public boolean leadershipTransfer;
 
     public RequestVote(int term, String candidateId) {
+        this(term, candidateId, 0, 0, false, false);
+    }
+
+    public RequestVote(int term, String candidateId, int lastLogIndex, int lastLogTerm, boolean preVote,
+                       boolean leadershipTransfer) {
         this.term = term;
         this.candidateId = candidateId;
+        this.lastLogIndex = lastLogIndex;
+        this.lastLogTerm = lastLogTerm;
+        this.preVote = preVote;
+        this.leadershipTransfer = leadershipTransfer;
     }
 
     public int getTerm() {
@@ -15,4 +31,28 @@ public class RequestVote {
     public String getCandidateId() {
         return candidateId;
     }
+    public int getLastLogIndex() {
+        return lastLogIndex;
+    }
+    public int getLastLogTerm() {
+        return lastLogTerm;
+    }
+    public boolean isPreVote() {
+        return preVote;
+    }
+    public boolean isLeadershipTransfer() {
+        return leadershipTransfer;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestVote{" +
+                "term=" + term +
+                ", candidateId='" + candidateId + '\'' +
+                ", lastLogIndex=" + lastLogIndex +
+                ", lastLogTerm=" + lastLogTerm +
+                ", preVote=" + preVote +
+                ", leadershipTransfer=" + leadershipTransfer +
+                '}';
+    }
 }
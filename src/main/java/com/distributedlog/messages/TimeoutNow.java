@@ -0,0 +1,27 @@
+package com.distributedlog.messages;
+
+/**
+ * Sent by a leader handing over leadership, once the chosen follower's log matches its own:
+ * the follower starts an election straight away instead of waiting for its election timeout.
+ */
+public class TimeoutNow {
+    private int term;
+    private String leaderId;
+    /**The leader's last log index, the follower only campaigns once its log reaches it*/
+    private int lastLogIndex;
+
+    public TimeoutNow(int term, String leaderId, int lastLogIndex) {
+        this.term = term;
+        this.leaderId = leaderId;
+        this.lastLogIndex = lastLogIndex;
+    }
+
+    public int getTerm() { return term; }
+    public String getLeaderId() { return leaderId; }
+    public int getLastLogIndex() { return lastLogIndex; }
+
+    @Override
+    public String toString() {
+        return "TimeoutNow{term=" + term + ", leaderId='" + leaderId + "', lastLogIndex=" + lastLogIndex + "}";
+    }
+}
@@ -0,0 +1,14 @@
+package com.distributedlog.messages;
+
+public class TimeoutNowResponse {
+    private int term;
+    private boolean accepted; /**True when the follower started an election*/
+
+    public TimeoutNowResponse(int term, boolean accepted) {
+        this.term = term;
+        this.accepted = accepted;
+    }
+
+    public int getTerm() { return term; }
+    public boolean isAccepted() { return accepted; }
+}
@@ -0,0 +1,480 @@
+package com.distributedlog.network;
+
+import com.distributedlog.messages.AppendEntries;
+import com.distributedlog.messages.AppendEntriesResponse;
+import com.distributedlog.messages.ClientBatch;
+import com.distributedlog.messages.ClientBatchResponse;
+import com.distributedlog.messages.CommandBytes;
+import com.distributedlog.messages.InstallSnapshot;
+import com.distributedlog.messages.InstallSnapshotResponse;
+import com.distributedlog.messages.ReadIndex;
+import com.distributedlog.messages.ReadIndexResponse;
+import com.distributedlog.messages.RequestVote;
+import com.distributedlog.messages.RequestVoteResponse;
+import com.distributedlog.messages.TimeoutNow;
+import com.distributedlog.messages.TimeoutNowResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary wire format used between peers.
+ * Frame: [int length][byte type][int groupId][long requestId][body], the length covers everything after itself.
+ * groupId names the Raft group a request is for, -1 on a client request routed by its keys.
+ * Strings are [int byte length, -1 for null][UTF-8 bytes]. Every frame is encoded into one exactly sized buffer,
+ * the size is computed up front so nothing is copied or grown on the way.
+ * The entries of an AppendEntries are preceded by a codec byte: with distributedlog.rpc.compression=deflate a batch
+ * of at least distributedlog.rpc.compressMinBytes goes out deflated with a preset dictionary, anything else as it is.
+ * Receivers read either, so nodes with different settings still talk to each other.
+ */
+final class BinaryCodec {
+    static final byte JSON_LINE = 0;
+    static final byte REQUEST_VOTE = 1;
+    static final byte REQUEST_VOTE_RESPONSE = 2;
+    static final byte APPEND_ENTRIES = 3;
+    static final byte APPEND_ENTRIES_RESPONSE = 4;
+    static final byte INSTALL_SNAPSHOT = 5;
+    static final byte INSTALL_SNAPSHOT_RESPONSE = 6;
+    static final byte CLIENT_BATCH = 7;
+    static final byte CLIENT_BATCH_RESPONSE = 8;
+    static final byte READ_INDEX = 9;
+    static final byte READ_INDEX_RESPONSE = 10;
+    static final byte TIMEOUT_NOW = 11;
+    static final byte TIMEOUT_NOW_RESPONSE = 12;
+
+    /**Flag bits of a RequestVote*/
+    private static final byte VOTE_PRE_VOTE = 1;
+    private static final byte VOTE_LEADERSHIP_TRANSFER = 2;
+
+    /**How the entries of an AppendEntries are encoded*/
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_DEFLATE = 1;
+    private static final boolean DEFLATE_ENTRIES = "deflate".equalsIgnoreCase(System.getProperty("distributedlog.rpc.compression", "none"));
+    /**Smaller batches are not worth the CPU, and have too little repetition for deflate to find*/
+    private static final int COMPRESS_MIN_BYTES = Integer.getInteger("distributedlog.rpc.compressMinBytes", 4096);
+    private static final int COMPRESS_LEVEL = Integer.getInteger("distributedlog.rpc.compressLevel", Deflater.BEST_SPEED);
+    /**
+     * Preset dictionary: a few entries laid out as on the wire, so even the start of a batch finds the term and length
+     * prefixes and the usual "key=value" shapes to refer back to. Sender and receiver need the same bytes, so changing
+     * it changes the wire format.
+     */
+    private static final byte[] DICTIONARY = buildDictionary();
+    /**Kept per thread and reset for every batch, creating them allocates native memory*/
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(COMPRESS_LEVEL));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    /**Type tag, groupId and requestId following the length prefix*/
+    static final int HEADER_BYTES = 1 + 4 + 8;
+    static final int MAX_FRAME_BYTES = Integer.getInteger("distributedlog.rpc.maxFrameBytes", 64 * 1024 * 1024);
+
+    private BinaryCodec() {
+    }
+
+    static ByteBuffer encode(long requestId, int groupId, Object message) {
+        return encode(requestId, groupId, message, DEFLATE_ENTRIES);
+    }
+
+    /**deflate overrides distributedlog.rpc.compression, so both encodings can be produced in one process*/
+    static ByteBuffer encode(long requestId, int groupId, Object message, boolean deflate) {
+        byte type = typeOf(message);
+        /**Whether a batch is deflated, and so how big the frame is, is known only once it has been compressed*/
+        Deflated deflated = type == APPEND_ENTRIES && deflate ? deflateEntries((AppendEntries) message) : null;
+        int bodySize = deflated == null ? bodySize(type, message)
+                : appendEntriesHeaderSize((AppendEntries) message) + 1 + 4 + deflated.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + HEADER_BYTES + bodySize);
+        buf.putInt(buf.capacity() - 4).put(type).putInt(groupId).putLong(requestId);
+
+        switch (type) {
+            case REQUEST_VOTE -> {
+                RequestVote vote = (RequestVote) message;
+                buf.putInt(vote.getTerm());
+                putString(buf, vote.getCandidateId());
+                buf.putInt(vote.getLastLogIndex()).putInt(vote.getLastLogTerm())
+                        .put((byte) ((vote.isPreVote() ? VOTE_PRE_VOTE : 0) | (vote.isLeadershipTransfer() ? VOTE_LEADERSHIP_TRANSFER : 0)));
+            }
+            case REQUEST_VOTE_RESPONSE -> {
+                RequestVoteResponse resp = (RequestVoteResponse) message;
+                buf.putInt(resp.getTerm()).put((byte) (resp.isVoteGranted() ? 1 : 0));
+            }
+            case APPEND_ENTRIES -> {
+                AppendEntries append = (AppendEntries) message;
+                buf.putInt(append.getTerm());
+                putString(buf, append.getLeaderId());
+                buf.putInt(append.getPrevLogIndex()).putInt(append.getPrevLogTerm()).putInt(append.getLeaderCommit());
+                List<String> entries = append.getEntries();
+                /**A count of -1 is a heartbeat*/
+                buf.putInt(entries == null ? -1 : entries.size());
+                if (deflated != null) {
+                    buf.put(CODEC_DEFLATE).putInt(deflated.rawLength).put(deflated.bytes, 0, deflated.length);
+                } else if (entries != null) {
+                    buf.put(CODEC_NONE);
+                    putEntries(buf, append);
+                }
+            }
+            case APPEND_ENTRIES_RESPONSE -> {
+                AppendEntriesResponse resp = (AppendEntriesResponse) message;
+                buf.putInt(resp.getTerm()).put((byte) (resp.isSuccess() ? 1 : 0)).putInt(resp.getMatchIndex())
+                        .putInt(resp.getConflictTerm()).putInt(resp.getConflictIndex());
+            }
+            case INSTALL_SNAPSHOT -> {
+                InstallSnapshot chunk = (InstallSnapshot) message;
+                buf.putInt(chunk.getTerm());
+                putString(buf, chunk.getLeaderId());
+                buf.putInt(chunk.getLastIncludedIndex()).putInt(chunk.getLastIncludedTerm())
+                        .putLong(chunk.getOffset()).put((byte) (chunk.isDone() ? 1 : 0));
+                putString(buf, chunk.getData());
+            }
+            case INSTALL_SNAPSHOT_RESPONSE -> {
+                InstallSnapshotResponse resp = (InstallSnapshotResponse) message;
+                buf.putInt(resp.getTerm()).put((byte) (resp.isSuccess() ? 1 : 0));
+            }
+            case CLIENT_BATCH -> {
+                List<String> commands = ((ClientBatch) message).getCommands();
+                buf.putInt(commands.size());
+                for (String command : commands) putString(buf, command);
+            }
+            case CLIENT_BATCH_RESPONSE -> {
+                ClientBatchResponse resp = (ClientBatchResponse) message;
+                putString(buf, resp.getStatus());
+                putString(buf, resp.getLeaderId());
+                long[] indexes = resp.getIndexes();
+                buf.putInt(indexes == null ? -1 : indexes.length);
+                if (indexes != null) {
+                    for (long index : indexes) buf.putLong(index);
+                }
+            }
+            case READ_INDEX -> putString(buf, ((ReadIndex) message).getFollowerId());
+            case READ_INDEX_RESPONSE -> {
+                ReadIndexResponse resp = (ReadIndexResponse) message;
+                buf.put((byte) (resp.isSuccess() ? 1 : 0)).putInt(resp.getReadIndex());
+                putString(buf, resp.getLeaderId());
+            }
+            case TIMEOUT_NOW -> {
+                TimeoutNow request = (TimeoutNow) message;
+                buf.putInt(request.getTerm());
+                putString(buf, request.getLeaderId());
+                buf.putInt(request.getLastLogIndex());
+            }
+            case TIMEOUT_NOW_RESPONSE -> {
+                TimeoutNowResponse resp = (TimeoutNowResponse) message;
+                buf.putInt(resp.getTerm()).put((byte) (resp.isAccepted() ? 1 : 0));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**Decodes the frame between buf.position() and buf.limit(), the length prefix already consumed*/
+    static Frame decode(ByteBuffer buf) throws IOException {
+        try {
+            byte type = buf.get();
+            int groupId = buf.getInt();
+            long requestId = buf.getLong();
+            Object message = switch (type) {
+                case REQUEST_VOTE -> decodeRequestVote(buf);
+                case REQUEST_VOTE_RESPONSE -> new RequestVoteResponse(buf.getInt(), buf.get() != 0);
+                case APPEND_ENTRIES -> decodeAppendEntries(buf);
+                case APPEND_ENTRIES_RESPONSE ->
+                        new AppendEntriesResponse(buf.getInt(), buf.get() != 0, buf.getInt(), buf.getInt(), buf.getInt());
+                case INSTALL_SNAPSHOT -> decodeInstallSnapshot(buf);
+                case INSTALL_SNAPSHOT_RESPONSE -> new InstallSnapshotResponse(buf.getInt(), buf.get() != 0);
+                case CLIENT_BATCH -> decodeClientBatch(buf);
+                case CLIENT_BATCH_RESPONSE -> decodeClientBatchResponse(buf);
+                case READ_INDEX -> new ReadIndex(getString(buf));
+                case READ_INDEX_RESPONSE -> new ReadIndexResponse(buf.get() != 0, buf.getInt(), getString(buf));
+                case TIMEOUT_NOW -> new TimeoutNow(buf.getInt(), getString(buf), buf.getInt());
+                case TIMEOUT_NOW_RESPONSE -> new TimeoutNowResponse(buf.getInt(), buf.get() != 0);
+                default -> throw new IOException("Unknown message type " + type);
+            };
+            if (buf.hasRemaining()) throw new IOException("Trailing bytes in message type " + type);
+            return new Frame(type, groupId, requestId, message);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed frame: " + e, e);
+        }
+    }
+
+    private static RequestVote decodeRequestVote(ByteBuffer buf) throws IOException {
+        int term = buf.getInt();
+        String candidateId = getString(buf);
+        int lastLogIndex = buf.getInt();
+        int lastLogTerm = buf.getInt();
+        byte flags = buf.get();
+        return new RequestVote(term, candidateId, lastLogIndex, lastLogTerm,
+                (flags & VOTE_PRE_VOTE) != 0, (flags & VOTE_LEADERSHIP_TRANSFER) != 0);
+    }
+
+    /**Entries without explicit terms belong to the message term*/
+    private static void putEntries(ByteBuffer buf, AppendEntries append) {
+        List<String> entries = append.getEntries();
+        int[] terms = append.getEntryTerms();
+        if (entries instanceof CommandBytes raw) {
+            /**A range of the leader's log, its bytes go out as they are stored*/
+            for (int i = 0; i < raw.size(); i++) {
+                buf.putInt(terms != null ? terms[i] : append.getTerm());
+                buf.putInt(raw.byteLength(i));
+                raw.writeTo(i, buf);
+            }
+        } else {
+            for (int i = 0; i < entries.size(); i++) {
+                buf.putInt(terms != null ? terms[i] : append.getTerm());
+                putString(buf, entries.get(i));
+            }
+        }
+    }
+
+    private static int entriesSize(AppendEntries append) {
+        int size = 0;
+        if (append.getEntries() instanceof CommandBytes raw) {
+            for (int i = 0; i < raw.size(); i++) size += 4 + 4 + raw.byteLength(i);
+        } else {
+            for (String entry : append.getEntries()) size += 4 + stringSize(entry);
+        }
+        return size;
+    }
+
+    private static int appendEntriesHeaderSize(AppendEntries append) {
+        return 4 + stringSize(append.getLeaderId()) + 4 * 4;
+    }
+
+    /**The entries of the batch deflated, or null when the batch is small or it did not shrink*/
+    private static Deflated deflateEntries(AppendEntries append) {
+        if (append.getEntries() == null) return null;
+        int rawLength = entriesSize(append);
+        if (rawLength < COMPRESS_MIN_BYTES) return null;
+
+        ByteBuffer raw = ByteBuffer.allocate(rawLength);
+        putEntries(raw, append);
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(raw.array(), 0, rawLength);
+        deflater.finish();
+        /**Output that would not fit in the raw size is not worth sending*/
+        byte[] out = new byte[rawLength];
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return deflater.finished() ? new Deflated(rawLength, out, length) : null;
+    }
+
+    /**Inflates the rest of the frame, which holds exactly rawLength bytes of entries*/
+    private static ByteBuffer inflateEntries(ByteBuffer buf, int rawLength) throws IOException {
+        if (rawLength < 0 || rawLength > MAX_FRAME_BYTES) throw new IOException("Bad entries length " + rawLength);
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        byte[] out = new byte[rawLength];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput() || length == out.length) {
+                        throw new IOException("Truncated or oversized deflated entries");
+                    }
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated entries: " + e.getMessage(), e);
+        }
+        if (length != rawLength || inflater.getRemaining() != 0) throw new IOException("Deflated entries do not match their length");
+        buf.position(buf.limit());
+        return ByteBuffer.wrap(out);
+    }
+
+    private static AppendEntries decodeAppendEntries(ByteBuffer buf) throws IOException {
+        int term = buf.getInt();
+        String leaderId = getString(buf);
+        int prevLogIndex = buf.getInt();
+        int prevLogTerm = buf.getInt();
+        int leaderCommit = buf.getInt();
+        int count = buf.getInt();
+        if (count < 0) return new AppendEntries(term, leaderId, prevLogIndex, prevLogTerm, null, null, leaderCommit);
+
+        byte codec = buf.get();
+        ByteBuffer in = switch (codec) {
+            case CODEC_NONE -> buf;
+            case CODEC_DEFLATE -> inflateEntries(buf, buf.getInt());
+            default -> throw new IOException("Unknown entry codec " + codec);
+        };
+
+        /**Each entry takes at least 8 bytes, this bounds the allocation by the frame size*/
+        if (count > in.remaining() / 8) throw new IOException("Bad entry count " + count);
+        List<String> entries = new ArrayList<>(count);
+        int[] terms = new int[count];
+        for (int i = 0; i < count; i++) {
+            terms[i] = in.getInt();
+            entries.add(getString(in));
+        }
+        if (in != buf && in.hasRemaining()) throw new IOException("Trailing bytes in deflated entries");
+
+        AppendEntries append = new AppendEntries(term, leaderId, prevLogIndex, prevLogTerm, entries, terms, leaderCommit);
+        if (codec == CODEC_DEFLATE) append.setCodec("deflate");
+        return append;
+    }
+
+    private static InstallSnapshot decodeInstallSnapshot(ByteBuffer buf) throws IOException {
+        int term = buf.getInt();
+        String leaderId = getString(buf);
+        int lastIncludedIndex = buf.getInt();
+        int lastIncludedTerm = buf.getInt();
+        long offset = buf.getLong();
+        boolean done = buf.get() != 0;
+        return new InstallSnapshot(term, leaderId, lastIncludedIndex, lastIncludedTerm, offset, getString(buf), done);
+    }
+
+    private static ClientBatch decodeClientBatch(ByteBuffer buf) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / 4) throw new IOException("Bad command count " + count);
+        List<String> commands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) commands.add(getString(buf));
+        return new ClientBatch(commands);
+    }
+
+    private static ClientBatchResponse decodeClientBatchResponse(ByteBuffer buf) throws IOException {
+        String status = getString(buf);
+        String leaderId = getString(buf);
+        int count = buf.getInt();
+        if (count > buf.remaining() / 8) throw new IOException("Bad index count " + count);
+        long[] indexes = null;
+        if (count >= 0) {
+            indexes = new long[count];
+            for (int i = 0; i < count; i++) indexes[i] = buf.getLong();
+        }
+        return new ClientBatchResponse(status, leaderId, indexes);
+    }
+
+    private static byte typeOf(Object message) {
+        if (message instanceof RequestVote) return REQUEST_VOTE;
+        if (message instanceof RequestVoteResponse) return REQUEST_VOTE_RESPONSE;
+        if (message instanceof AppendEntries) return APPEND_ENTRIES;
+        if (message instanceof AppendEntriesResponse) return APPEND_ENTRIES_RESPONSE;
+        if (message instanceof InstallSnapshot) return INSTALL_SNAPSHOT;
+        if (message instanceof InstallSnapshotResponse) return INSTALL_SNAPSHOT_RESPONSE;
+        if (message instanceof ClientBatch) return CLIENT_BATCH;
+        if (message instanceof ClientBatchResponse) return CLIENT_BATCH_RESPONSE;
+        if (message instanceof ReadIndex) return READ_INDEX;
+        if (message instanceof ReadIndexResponse) return READ_INDEX_RESPONSE;
+        if (message instanceof TimeoutNow) return TIMEOUT_NOW;
+        if (message instanceof TimeoutNowResponse) return TIMEOUT_NOW_RESPONSE;
+        throw new IllegalArgumentException("No binary encoding for " + message.getClass().getSimpleName());
+    }
+
+    private static int bodySize(byte type, Object message) {
+        switch (type) {
+            case REQUEST_VOTE:
+                return 4 + stringSize(((RequestVote) message).getCandidateId()) + 4 + 4 + 1;
+            case APPEND_ENTRIES: {
+                AppendEntries append = (AppendEntries) message;
+                return appendEntriesHeaderSize(append) + (append.getEntries() == null ? 0 : 1 + entriesSize(append));
+            }
+            case INSTALL_SNAPSHOT: {
+                InstallSnapshot chunk = (InstallSnapshot) message;
+                return 4 + stringSize(chunk.getLeaderId()) + 4 + 4 + 8 + 1 + stringSize(chunk.getData());
+            }
+            case APPEND_ENTRIES_RESPONSE:
+                return 4 + 1 + 4 + 4 + 4;
+            case CLIENT_BATCH: {
+                int size = 4;
+                for (String command : ((ClientBatch) message).getCommands()) size += stringSize(command);
+                return size;
+            }
+            case CLIENT_BATCH_RESPONSE: {
+                ClientBatchResponse resp = (ClientBatchResponse) message;
+                long[] indexes = resp.getIndexes();
+                return stringSize(resp.getStatus()) + stringSize(resp.getLeaderId()) + 4 + (indexes == null ? 0 : 8 * indexes.length);
+            }
+            case READ_INDEX:
+                return stringSize(((ReadIndex) message).getFollowerId());
+            case READ_INDEX_RESPONSE:
+                return 1 + 4 + stringSize(((ReadIndexResponse) message).getLeaderId());
+            case TIMEOUT_NOW:
+                return 4 + stringSize(((TimeoutNow) message).getLeaderId()) + 4;
+            default:
+                return 4 + 1;
+        }
+    }
+
+    private static byte[] buildDictionary() {
+        String[] samples = {"true", "false", "null", "value", "name=", "id=", "count=", "set", "key=value",
+                "a=1", "b=2", "x=5", "y=24", "k0=v", "k1=v", "0123456789"};
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        for (String sample : samples) {
+            buf.putInt(1);
+            putString(buf, sample);
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static int stringSize(String s) {
+        return 4 + (s == null ? 0 : utf8Length(s));
+    }
+
+    /**Byte length of s in UTF-8, counting unpaired surrogates as the single '?' the encoder replaces them with*/
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        if (s == null) {
+            buf.putInt(-1);
+            return;
+        }
+        int length = utf8Length(s);
+        buf.putInt(length);
+        if (length == s.length()) {
+            /**Plain ASCII, the common case for commands and ids, is written without an intermediate array*/
+            for (int i = 0; i < length; i++) buf.put((byte) s.charAt(i));
+        } else {
+            buf.put(s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class Deflated {
+        private final int rawLength;
+        private final byte[] bytes;
+        private final int length;
+
+        Deflated(int rawLength, byte[] bytes, int length) {
+            this.rawLength = rawLength;
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    private static String getString(ByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > buf.remaining()) throw new IOException("Bad string length " + length);
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+}
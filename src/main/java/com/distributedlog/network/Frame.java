@@ -0,0 +1,37 @@
+package com.distributedlog.network;
+
+/**One decoded request or response: its type tag, the Raft group it is for, the requestId it belongs to and the message it carries*/
+final class Frame {
+    /**Group of a client request that is routed by the keys it touches*/
+    static final int NO_GROUP = -1;
+
+    final byte type;
+    final int groupId;
+    final long requestId;
+    final Object message;
+
+    Frame(byte type, int groupId, long requestId, Object message) {
+        this.type = type;
+        this.groupId = groupId;
+        this.requestId = requestId;
+        this.message = message;
+    }
+
+    /**A newline-delimited JSON message, which names its group itself; the requestId is -1 when the line does not start with one*/
+    static Frame json(String line) {
+        return new Frame(BinaryCodec.JSON_LINE, NO_GROUP, parseRequestId(line), line);
+    }
+
+    /**Responses start with {"requestId":N, so the id is read without parsing the whole message*/
+    private static long parseRequestId(String line) {
+        String prefix = "{\"requestId\":";
+        if (!line.startsWith(prefix)) return -1;
+        long id = 0;
+        for (int i = prefix.length(); i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') break;
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+}
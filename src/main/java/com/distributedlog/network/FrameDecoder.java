@@ -0,0 +1,69 @@
+package com.distributedlog.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Splits the bytes of one connection into frames. The format is picked from the first byte: JSON lines start with
+ * '{' (or whitespace), binary frames with the high byte of their length, which stays far below those values.
+ * Complete binary frames are decoded straight from the input buffer; only a trailing partial frame is copied.
+ */
+final class FrameDecoder {
+    private static final int UNKNOWN = 0;
+    private static final int JSON = 1;
+    private static final int BINARY = 2;
+
+    private int format = UNKNOWN;
+    private final LineFrameDecoder lines = new LineFrameDecoder();
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+
+    void feed(ByteBuffer data, Consumer<Frame> sink) throws IOException {
+        if (format == UNKNOWN) {
+            if (!data.hasRemaining()) return;
+            byte first = data.get(data.position());
+            format = first == '{' || Character.isWhitespace(first) ? JSON : BINARY;
+        }
+
+        if (format == JSON) {
+            lines.feed(data, line -> sink.accept(Frame.json(line)));
+            return;
+        }
+
+        if (pending.position() == 0) {
+            decodeFrames(data, sink);
+            if (!data.hasRemaining()) return;
+        }
+        append(data);
+        pending.flip();
+        decodeFrames(pending, sink);
+        pending.compact();
+    }
+
+    private void decodeFrames(ByteBuffer buf, Consumer<Frame> sink) throws IOException {
+        while (buf.remaining() >= 4) {
+            int length = buf.getInt(buf.position());
+            if (length < BinaryCodec.HEADER_BYTES || length > BinaryCodec.MAX_FRAME_BYTES) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (buf.remaining() < 4 + length) return;
+
+            int end = buf.position() + 4 + length;
+            int limit = buf.limit();
+            buf.position(buf.position() + 4).limit(end);
+            Frame frame = BinaryCodec.decode(buf);
+            buf.limit(limit).position(end);
+            sink.accept(frame);
+        }
+    }
+
+    private void append(ByteBuffer data) {
+        if (pending.remaining() < data.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + data.remaining()));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.put(data);
+    }
+}
@@ -0,0 +1,36 @@
+package com.distributedlog.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Splits a byte stream into newline-terminated frames. Bytes are fed as they arrive, in chunks of any size,
+ * and a frame is handed on only once its terminating newline has been seen.
+ */
+final class LineFrameDecoder {
+    private byte[] pending = new byte[1024];
+    private int length;
+
+    void feed(ByteBuffer data, Consumer<String> sink) {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            if (b == '\n') {
+                String frame = new String(pending, 0, length, StandardCharsets.UTF_8).trim();
+                length = 0;
+                if (!frame.isEmpty()) sink.accept(frame);
+            } else {
+                if (length == pending.length) pending = Arrays.copyOf(pending, length * 2);
+                pending[length++] = b;
+            }
+        }
+    }
+
+    static ByteBuffer encode(String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(bytes.length + 1);
+        buf.put(bytes).put((byte) '\n').flip();
+        return buf;
+    }
+}
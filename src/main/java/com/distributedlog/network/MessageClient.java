@@ -1,33 +1,130 @@
 package com.distributedlog.network;
 
+import com.distributedlog.messages.AppendEntries;
+import com.distributedlog.messages.AppendEntriesResponse;
+import com.distributedlog.messages.ClientBatch;
+import com.distributedlog.messages.ClientBatchResponse;
+import com.distributedlog.messages.InstallSnapshot;
+import com.distributedlog.messages.InstallSnapshotResponse;
+import com.distributedlog.messages.ReadIndex;
+import com.distributedlog.messages.ReadIndexResponse;
+import com.distributedlog.messages.RequestVote;
+import com.distributedlog.messages.RequestVoteResponse;
+import com.distributedlog.messages.TimeoutNow;
+import com.distributedlog.messages.TimeoutNowResponse;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.gson.Gson;
 
-import java.io.*;
-import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Sends RPCs to peers over one persistent connection per peer. Requests are tagged with a requestId so several
+ * can be in flight on the same connection and their responses are matched regardless of order.
+ * Raft RPCs use the binary codec; setting distributedlog.rpc.codec=json sends them as JSON lines for debugging.
+ * Every Raft RPC names the group it is for, the groups of a host share its connections.
+ */
 public class MessageClient {
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Gson gson = new Gson();
+    private static final long REQUEST_TIMEOUT_MS = Long.getLong("distributedlog.rpc.timeoutMs", 2000);
+    /**Client batches wait for a quorum commit of every command, so they get more time than peer RPCs*/
+    private static final long CLIENT_TIMEOUT_MS = Long.getLong("distributedlog.client.timeoutMs", 10000);
+    private static final boolean JSON_RPC = "json".equalsIgnoreCase(System.getProperty("distributedlog.rpc.codec", "binary"));
+    private static final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
 
-    /**Send message object as a JSON and return the JSON response*/
-    public static String sendMessage(String host, int port, Object messageObject) {
-        try (Socket socket = new Socket(host, port);
-             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+    public static CompletableFuture<RequestVoteResponse> requestVote(String host, int port, int groupId, RequestVote vote) {
+        return call(host, port, groupId, vote, RequestVoteResponse.class, REQUEST_TIMEOUT_MS);
+    }
 
-            /**Converts the object to JSOn*/
-            String json = objectMapper.writeValueAsString(messageObject);
+    public static CompletableFuture<AppendEntriesResponse> appendEntries(String host, int port, int groupId, AppendEntries append) {
+        return call(host, port, groupId, append, AppendEntriesResponse.class, REQUEST_TIMEOUT_MS);
+    }
 
-            /**Send message*/
-            writer.write(json);
-            writer.newLine();
-            writer.flush();
+    public static CompletableFuture<InstallSnapshotResponse> installSnapshot(String host, int port, int groupId, InstallSnapshot chunk) {
+        return call(host, port, groupId, chunk, InstallSnapshotResponse.class, REQUEST_TIMEOUT_MS);
+    }
 
-            /**Read reponse*/
-            return reader.readLine();
+    public static CompletableFuture<ReadIndexResponse> readIndex(String host, int port, int groupId, ReadIndex request) {
+        return call(host, port, groupId, request, ReadIndexResponse.class, REQUEST_TIMEOUT_MS);
+    }
+
+    public static CompletableFuture<TimeoutNowResponse> timeoutNow(String host, int port, int groupId, TimeoutNow request) {
+        return call(host, port, groupId, request, TimeoutNowResponse.class, REQUEST_TIMEOUT_MS);
+    }
 
-        } catch (IOException e) {
-            System.err.println("[Client] Connection error to " + host + ":" + port + " -> " + e.getMessage());
+    /**A client batch, the node commits every command in the group that owns its key*/
+    public static CompletableFuture<ClientBatchResponse> clientBatch(String host, int port, ClientBatch batch) {
+        return clientBatch(host, port, Frame.NO_GROUP, batch);
+    }
+
+    /**A client batch whose commands all belong to groupId, committed there or answered with a redirect*/
+    public static CompletableFuture<ClientBatchResponse> clientBatch(String host, int port, int groupId, ClientBatch batch) {
+        return call(host, port, groupId, batch, ClientBatchResponse.class, CLIENT_TIMEOUT_MS);
+    }
+
+    /**Waits for a response, null when the peer could not be reached or did not answer in time*/
+    public static <T> T await(CompletableFuture<T> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                System.err.println("[Client] Request timed out");
+            }
             return null;
         }
     }
+
+    /**Send message object as a JSON and return the JSON response, null when the peer could not be reached*/
+    public static String sendMessage(String host, int port, Object messageObject) {
+        return await(sendMessageAsync(host, port, messageObject));
+    }
+
+    /**Send message object as a JSON without blocking; the future completes with the JSON response*/
+    public static CompletableFuture<String> sendMessageAsync(String host, int port, Object messageObject) {
+        return sendMessageAsync(host, port, Frame.NO_GROUP, messageObject, REQUEST_TIMEOUT_MS);
+    }
+
+    private static CompletableFuture<String> sendMessageAsync(String host, int port, int groupId, Object messageObject, long timeoutMs) {
+        PeerConnection connection = connection("json", host, port);
+        long requestId = connection.nextRequestId();
+        String json;
+        try {
+            /**Converts the object to JSON and tags it with the requestId*/
+            ObjectNode node = objectMapper.valueToTree(messageObject);
+            node.put("requestId", requestId);
+            if (groupId != Frame.NO_GROUP) node.put("groupId", groupId);
+            json = objectMapper.writeValueAsString(node);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return connection.send(requestId, LineFrameDecoder.encode(json))
+                .orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .thenApply(frame -> (String) frame.message);
+    }
+
+    private static <T> CompletableFuture<T> call(String host, int port, int groupId, Object request, Class<T> responseType, long timeoutMs) {
+        if (JSON_RPC) {
+            return sendMessageAsync(host, port, groupId, request, timeoutMs).thenApply(json -> gson.fromJson(json, responseType));
+        }
+
+        PeerConnection connection = connection("binary", host, port);
+        long requestId = connection.nextRequestId();
+        return connection.send(requestId, BinaryCodec.encode(requestId, groupId, request))
+                .orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .thenApply(frame -> responseType.cast(frame.message));
+    }
+
+    /**JSON and binary traffic use separate connections, a connection speaks one format for its whole life*/
+    private static PeerConnection connection(String format, String host, int port) {
+        return connections.computeIfAbsent(format + ":" + host + ":" + port, k -> new PeerConnection(host, port));
+    }
 }
@@ -2,11 +2,22 @@ package com.distributedlog.network;
 
 import com.distributedlog.messages.AppendEntries;
 import com.distributedlog.messages.AppendEntriesResponse;
+import com.distributedlog.messages.ClientBatch;
+import com.distributedlog.messages.ClientBatchResponse;
+import com.distributedlog.messages.InstallSnapshot;
+import com.distributedlog.messages.InstallSnapshotResponse;
+import com.distributedlog.messages.ReadIndex;
+import com.distributedlog.messages.ReadIndexResponse;
 import com.distributedlog.messages.RequestVote;
 import com.distributedlog.messages.RequestVoteResponse;
+import com.distributedlog.messages.TimeoutNow;
+import com.distributedlog.messages.TimeoutNowResponse;
+import com.distributedlog.node.ElectionManager;
 import com.distributedlog.node.NodeRole;
 import com.distributedlog.node.NodeState;
 import com.distributedlog.node.NodeTimers;
+import com.distributedlog.node.RaftGroup;
+import com.distributedlog.node.RaftHost;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -14,177 +25,582 @@ import com.google.gson.JsonParser;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
+/**
+ * Accepts RPCs and client requests for one node. Two interchangeable designs, picked with distributedlog.server.mode:
+ * "virtual" (default) serves every connection on its own virtual thread, "nio" runs a selector event loop with a
+ * worker pool. Either way connections are persistent and carry any number of frames. Peers speak the binary codec,
+ * clients and debug tools newline-delimited JSON; the format of a connection is told apart by its first byte.
+ * Raft RPCs are handled on the loop of the group they name; their response is sent once what the handler changed
+ * is durable. Client writes and reads go to the group owning their key.
+ */
 public class MessageServer implements Runnable {
+    private static final String SERVER_MODE = System.getProperty("distributedlog.server.mode", "virtual");
+    /**A read that cannot confirm leadership within this time is answered with an error*/
+    private static final long READ_TIMEOUT_MS = Long.getLong("distributedlog.read.timeoutMs", 2000);
+    private static final String TRANSFER_IN_PROGRESS =
+            "{\"status\":\"error\",\"message\":\"Leadership transfer in progress, retry shortly\"}";
+
     private final int port;
-    private final NodeState nodeState;
-    private final NodeTimers nodeTimers;
+    private final RaftHost host;
     private final Gson gson = new Gson();
 
-    public MessageServer(int port, NodeState nodeState, NodeTimers nodeTimers) {
+    public MessageServer(int port, RaftHost host) {
         this.port = port;
-        this.nodeState = nodeState;
-        this.nodeTimers = nodeTimers;
+        this.host = host;
     }
 
     @Override
     public void run() {
+        if ("nio".equalsIgnoreCase(SERVER_MODE)) {
+            new SelectorServer(port, this::handleFrame).run();
+            return;
+        }
+
+        ExecutorService workers = SelectorServer.newWorkerPool(port);
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("[Server] Listening on port " + port);
+            System.out.println("[Server] Listening on port " + port + " (virtual threads)");
 
             while (true) {
                 Socket client = serverSocket.accept();
-
-                try (
-                        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                        PrintWriter out = new PrintWriter(client.getOutputStream(), true)
-                ) {
-                    String message = in.readLine();
-                    if (message != null && !message.isBlank()) {
-                        System.out.println("[Server " + port + "] Received: " + message.trim());
-                        handleIncomingMessage(message.trim(), out);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    try {
-                        client.close();
-                    } catch (IOException ignored) {
-                    }
-                }
+                Thread.ofVirtual().name("server-" + port + "-conn").start(() -> serveConnection(client, workers));
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private void handleIncomingMessage(String message, PrintWriter out) {
+    /**
+     * Serves every frame sent on one connection until the peer closes it. Frames are dispatched in order;
+     * responses that complete later (client commands) are written whenever they are ready.
+     * The virtual thread only does the socket IO: RPCs are queued for the node loop, but reads still take the state
+     * machine's apply lock, and a virtual thread blocked on a monitor pins its carrier, so frames are dispatched from
+     * the platform worker pool instead.
+     */
+    private void serveConnection(Socket client, ExecutorService workers) {
+        try (Socket socket = client) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Lock writeLock = new ReentrantLock();
+            FrameDecoder decoder = new FrameDecoder();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                decoder.feed(ByteBuffer.wrap(buf, 0, n), frame ->
+                        CompletableFuture.supplyAsync(() -> handleFrame(frame), workers).join()
+                                .thenAccept(response -> writeFrame(out, writeLock, response)));
+            }
+        } catch (IOException e) {
+            System.out.println("[Server " + port + "] Connection closed: " + e.getMessage());
+        }
+    }
+
+    private void writeFrame(OutputStream out, Lock writeLock, ByteBuffer frame) {
+        if (frame == null) return;
+        writeLock.lock();
+        try {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("[Server " + port + "] Could not send response: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    /**Dispatches one decoded frame and completes with the encoded response, null when there is nothing to send*/
+    private CompletableFuture<ByteBuffer> handleFrame(Frame frame) {
+        if (frame.type == BinaryCodec.JSON_LINE) {
+            return handleIncomingMessage((String) frame.message).thenApply(LineFrameDecoder::encode);
+        }
+
+        if (frame.message instanceof ClientBatch batch) {
+            return handleClientBatch(frame.groupId, batch).thenApply(resp -> BinaryCodec.encode(frame.requestId, frame.groupId, resp));
+        }
+        RaftGroup group = host.getGroup(frame.groupId);
+        if (group == null) {
+            System.out.println("[Server " + port + "] Ignoring " + frame.message + " for unknown group " + frame.groupId);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        System.out.println(tag(group) + " Received: " + frame.message);
+        CompletableFuture<?> response;
+        if (frame.message instanceof RequestVote vote) {
+            response = onLoop(group, () -> handleRequestVote(group, vote));
+        } else if (frame.message instanceof AppendEntries append) {
+            response = onLoop(group, () -> handleAppendEntries(group, append));
+        } else if (frame.message instanceof InstallSnapshot chunk) {
+            response = onLoop(group, () -> handleInstallSnapshot(group, chunk)).thenCompose(installed -> installed);
+        } else if (frame.message instanceof TimeoutNow request) {
+            response = onLoop(group, () -> handleTimeoutNow(group, request));
+        } else if (frame.message instanceof ReadIndex request) {
+            response = handleReadIndex(group, request);
+        } else {
+            System.out.println(tag(group) + " Ignoring unexpected message " + frame.message);
+            return CompletableFuture.completedFuture(null);
+        }
+        return response.thenApply(resp -> BinaryCodec.encode(frame.requestId, frame.groupId, resp));
+    }
+
+    /**
+     * Runs an RPC handler on the group's loop. The response only goes out once everything the handler changed (term,
+     * vote, log entries) is on disk; the loop carries on with the next message meanwhile.
+     */
+    private <T> CompletableFuture<T> onLoop(RaftGroup group, Supplier<T> handler) {
+        NodeState nodeState = group.getNodeState();
+        return nodeState.getLoop().submit(() -> {
+            T response = handler.get();
+            return nodeState.persist().thenApply(durable -> response);
+        }).thenCompose(response -> response);
+    }
+
+    /**
+     * Dispatches one JSON request and completes with its response, echoing the requestId so pipelined callers can match it.
+     * A request may name its group with "groupId"; RPCs without one are for group 0, client requests without one go to
+     * the group owning their key.
+     */
+    private CompletableFuture<String> handleIncomingMessage(String message) {
+        System.out.println("[Server " + port + "] Received: " + message);
+        CompletableFuture<String> response;
+        long requestId = -1;
         try {
             JsonObject json = JsonParser.parseString(message).getAsJsonObject();
+            if (json.has("requestId")) requestId = json.get("requestId").getAsLong();
+            int groupId = json.has("groupId") ? json.get("groupId").getAsInt() : Frame.NO_GROUP;
+            RaftGroup group = host.getGroup(groupId == Frame.NO_GROUP ? 0 : groupId);
 
-            if (json.has("candidateId")) {
-                handleRequestVote(message, out);
+            if (group == null) {
+                response = CompletableFuture.completedFuture("{\"status\":\"error\",\"message\":\"Unknown group " + groupId + "\"}");
+            } else if (json.has("candidateId")) {
+                RequestVote vote = gson.fromJson(message, RequestVote.class);
+                response = onLoop(group, () -> handleRequestVote(group, vote)).thenApply(gson::toJson);
+            } else if (json.has("lastIncludedIndex")) {
+                InstallSnapshot chunk = gson.fromJson(message, InstallSnapshot.class);
+                response = onLoop(group, () -> handleInstallSnapshot(group, chunk)).thenCompose(installed -> installed).thenApply(gson::toJson);
+            } else if (json.has("lastLogIndex")) {
+                TimeoutNow request = gson.fromJson(message, TimeoutNow.class);
+                response = onLoop(group, () -> handleTimeoutNow(group, request)).thenApply(gson::toJson);
             } else if (json.has("leaderId")) {
-                handleAppendEntries(message, out);
+                AppendEntries append = gson.fromJson(message, AppendEntries.class);
+                response = onLoop(group, () -> handleAppendEntries(group, append)).thenApply(gson::toJson);
             }
             /**Meessages accepted with client command*/
             else if (json.has("clientCommand")) {
-                handleClientCommand(json, out);
+                String command = json.has("data") ? json.get("data").getAsString() : null;
+                RaftGroup owner = groupId != Frame.NO_GROUP || command == null ? group : host.groupForCommand(command);
+                response = handleClientCommand(owner, json, command);
+            }
+            else if (json.has("commands")) {
+                response = handleClientBatch(groupId, gson.fromJson(message, ClientBatch.class)).thenApply(gson::toJson);
+            }
+            else if (json.has("get")) {
+                String key = json.get("get").getAsString();
+                long maxStalenessMs = json.has("maxStalenessMs") ? json.get("maxStalenessMs").getAsLong() : -1;
+                response = handleGet(groupId != Frame.NO_GROUP ? group : host.groupForKey(key), key, maxStalenessMs);
+            }
+            else if (json.has("followerId")) {
+                response = handleReadIndex(group, gson.fromJson(message, ReadIndex.class)).thenApply(gson::toJson);
             }
             else if (json.has("getLeader")) {
-                handleLeaderQuery(out);
+                response = CompletableFuture.completedFuture(handleLeaderQuery());
+            }
+            /**Admin: {"transferLeadership":5002}, or any value without a port to pick the most up to date follower*/
+            else if (json.has("transferLeadership")) {
+                String target = json.get("transferLeadership").getAsString();
+                response = groupId != Frame.NO_GROUP ? handleTransferLeadership(group, target) : handleTransferAll(target);
             } else {
-                out.println("{\"status\":\"unknown_message\"}");
+                response = CompletableFuture.completedFuture("{\"status\":\"unknown_message\"}");
             }
         } catch (Exception e) {
             e.printStackTrace();
-            out.println("{\"error\":\"invalid_json\"}");
+            response = CompletableFuture.completedFuture("{\"error\":\"invalid_json\"}");
         }
+
+        long id = requestId;
+        return id < 0 ? response : response.thenApply(r -> "{\"requestId\":" + id + "," + r.substring(1));
+    }
+
+    /**Log prefix naming the port, and the group unless it is group 0*/
+    private String tag(RaftGroup group) {
+        return "[Server " + port + (group.getGroupId() == 0 ? "" : "/g" + group.getGroupId()) + "]";
     }
 
-    /**Handles the RequestVote RPC*/
-    private void handleRequestVote(String message, PrintWriter out) {
-        RequestVote vote = gson.fromJson(message, RequestVote.class);
-        RequestVoteResponse resp;
+    /**
+     * Handles the RequestVote RPC, on the loop. A vote only goes to a candidate whose log is at least as up to date as
+     * this node's. While a leader has been heard from within the minimum election timeout the request is ignored,
+     * term included, so a node rejoining after a partition or a pause cannot depose a working leader; a candidate
+     * sent a TimeoutNow by that leader is the exception. A pre-vote is answered the same way but changes nothing.
+     */
+    private RequestVoteResponse handleRequestVote(RaftGroup group, RequestVote vote) {
+        NodeState nodeState = group.getNodeState();
+        int lastLogTerm = nodeState.getLastLogTerm();
+        boolean logUpToDate = vote.getLastLogTerm() > lastLogTerm
+                || (vote.getLastLogTerm() == lastLogTerm && vote.getLastLogIndex() >= nodeState.getLastLogIndex());
+        boolean leaderAlive = !vote.isLeadershipTransfer()
+                && nodeState.getLeaderContactAgeMs() < NodeTimers.ELECTION_TIMEOUT_MIN_MS;
 
-        synchronized (nodeState) {
+        boolean grant = false;
+        if (leaderAlive) {
+            /**Sticking with the current leader*/
+        } else if (vote.isPreVote()) {
+            grant = vote.getTerm() > nodeState.getCurrentTerm() && logUpToDate;
+        } else {
             if (vote.getTerm() > nodeState.getCurrentTerm()) {
-                nodeState.setCurrentTerm(vote.getTerm());
-                nodeState.setVotedFor(null);
-                nodeState.setRole(NodeRole.FOLLOWER);
+                nodeState.stepDownToTerm(vote.getTerm());
             }
 
-            boolean grant = false;
-            if (vote.getTerm() >= nodeState.getCurrentTerm()) {
+            if (vote.getTerm() == nodeState.getCurrentTerm() && logUpToDate) {
                 String votedFor = nodeState.getVotedFor();
                 if (votedFor == null || votedFor.equals(vote.getCandidateId())) {
                     nodeState.setVotedFor(vote.getCandidateId());
                     grant = true;
+                    /**A node that just voted gives the candidate a full timeout to win*/
+                    group.getNodeTimers().resetElectionTimeout();
                 }
             }
-
-            resp = new RequestVoteResponse(nodeState.getCurrentTerm(), grant);
-            System.out.println("[Server " + port + "] RequestVote -> grant=" + grant + ", nodeState=" + nodeState);
         }
 
-        out.println(gson.toJson(resp));
+        RequestVoteResponse resp = new RequestVoteResponse(nodeState.getCurrentTerm(), grant);
+        System.out.println(tag(group) + " " + (vote.isPreVote() ? "PreVote" : "RequestVote") + " from " +
+                vote.getCandidateId() + " -> grant=" + grant + (leaderAlive ? " (leader alive)" : "") + ", nodeState=" + nodeState);
+        return resp;
     }
 
-    /**Handles the AppendEntries RPC*/
-    private void handleAppendEntries(String message, PrintWriter out) {
-        AppendEntries append = gson.fromJson(message, AppendEntries.class);
-        AppendEntriesResponse resp;
+    /**Handles the AppendEntries RPC, on the loop*/
+    private AppendEntriesResponse handleAppendEntries(RaftGroup group, AppendEntries append) {
+        NodeState nodeState = group.getNodeState();
+        if (append.getTerm() > nodeState.getCurrentTerm()) {
+            nodeState.stepDownToTerm(append.getTerm());
+        }
 
-        synchronized (nodeState) {
-            if (append.getTerm() > nodeState.getCurrentTerm()) {
-                nodeState.setCurrentTerm(append.getTerm());
-                nodeState.setVotedFor(null);
+        boolean success;
+        int matchIndex;
+        int conflictTerm = 0;
+        int conflictIndex = 0;
+
+        if (append.getTerm() < nodeState.getCurrentTerm()) {
+            success = false;
+            matchIndex = nodeState.getLastLogIndex();
+        } else {
+            success = nodeState.appendEntriesWithConsistency(append);
+            matchIndex = nodeState.getLastLogIndex();
+
+            if (!success) {
+                /**Tell the leader where the mismatch starts so it can skip the whole conflicting term*/
+                int prevLogIndex = append.getPrevLogIndex();
+                if (prevLogIndex > matchIndex) {
+                    conflictIndex = matchIndex + 1;
+                } else {
+                    conflictTerm = nodeState.getTermAtIndex(prevLogIndex);
+                    conflictIndex = nodeState.getFirstIndexOfTerm(conflictTerm, prevLogIndex);
+                }
+            }
+
+            if (success) {
                 nodeState.setRole(NodeRole.FOLLOWER);
+                group.getNodeTimers().resetElectionTimeout();
+
+                nodeState.setLeaderId(append.getLeaderId()); //track leader
+                nodeState.markLeaderContact();
             }
+        }
 
-            boolean success;
-            int matchIndex;
+        AppendEntriesResponse resp = new AppendEntriesResponse(nodeState.getCurrentTerm(), success, matchIndex, conflictTerm, conflictIndex);
+        System.out.println(tag(group) + " AppendEntries -> success=" + success + ", nodeState=" + nodeState);
+        return resp;
+    }
 
-            if (append.getTerm() < nodeState.getCurrentTerm()) {
-                success = false;
-                matchIndex = nodeState.getLastLogIndex();
-            } else {
-                success = nodeState.appendEntriesWithConsistency(append);
-                matchIndex = nodeState.getLastLogIndex();
+    /**Handles one InstallSnapshot chunk from the leader, on the loop*/
+    private CompletableFuture<InstallSnapshotResponse> handleInstallSnapshot(RaftGroup group, InstallSnapshot chunk) {
+        NodeState nodeState = group.getNodeState();
+        if (chunk.getTerm() > nodeState.getCurrentTerm()) {
+            nodeState.stepDownToTerm(chunk.getTerm());
+        }
+
+        int term = nodeState.getCurrentTerm();
+        CompletableFuture<Boolean> success = CompletableFuture.completedFuture(false);
+        if (chunk.getTerm() == term) {
+            nodeState.setRole(NodeRole.FOLLOWER);
+            nodeState.setLeaderId(chunk.getLeaderId());
+            nodeState.markLeaderContact();
+            group.getNodeTimers().resetElectionTimeout();
+            /**The last chunk is answered once the snapshot is written, which happens off the loop*/
+            success = nodeState.receiveSnapshotChunk(chunk);
+        }
 
-                if (success) {
-                    nodeState.setRole(NodeRole.FOLLOWER);
-                    if (nodeTimers != null) nodeTimers.resetElectionTimeout();
+        return success.thenApply(ok -> {
+            System.out.println(tag(group) + " " + chunk + " -> success=" + ok);
+            return new InstallSnapshotResponse(term, ok);
+        });
+    }
 
-                    nodeState.setLeaderId(append.getLeaderId()); //track leader
-                }
+    /**Handles a TimeoutNow from the leader handing leadership to this node, on the loop*/
+    private TimeoutNowResponse handleTimeoutNow(RaftGroup group, TimeoutNow request) {
+        boolean accepted = group.getElectionManager().onTimeoutNow(request);
+        /**The election started here must not be joined by one from the timer*/
+        if (accepted) group.getNodeTimers().resetElectionTimeout();
+        System.out.println(tag(group) + " " + request + " -> accepted=" + accepted);
+        return new TimeoutNowResponse(group.getNodeState().getCurrentTerm(), accepted);
+    }
+
+    /**
+     * Admin request to move leadership of one group off this node before it is restarted. Answers once this node has
+     * stepped down, reporting how long writes were refused, or with an error once the transfer was given up and
+     * writes resumed.
+     */
+    private CompletableFuture<String> handleTransferLeadership(RaftGroup group, String target) {
+        if (group.getNodeState().getRole() != NodeRole.LEADER) {
+            return CompletableFuture.completedFuture(redirectResponse(group));
+        }
+        String digits = target.replaceAll("\\D+", "");
+        int targetPort = digits.isEmpty() ? -1 : Integer.parseInt(digits);
+        return group.getElectionManager().transferLeadership(targetPort).handle((pausedMs, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                return "{\"status\":\"error\",\"message\":\"" + cause.getMessage() + "\"}";
             }
+            return "{\"status\":\"ok\",\"writesPausedMs\":" + pausedMs + ",\"message\":\"Leadership handed over\"}";
+        });
+    }
 
-            resp = new AppendEntriesResponse(nodeState.getCurrentTerm(), success, matchIndex);
-            System.out.println("[Server " + port + "] AppendEntries -> success=" + success + ", nodeState=" + nodeState);
+    /**Moves the leadership of every group this node leads, as before a restart; the transfers run side by side*/
+    private CompletableFuture<String> handleTransferAll(String target) {
+        List<RaftGroup> led = new ArrayList<>();
+        for (RaftGroup group : host.getGroups()) {
+            if (group.getNodeState().getRole() == NodeRole.LEADER) led.add(group);
+        }
+        if (led.isEmpty()) {
+            return CompletableFuture.completedFuture(redirectResponse(host.getGroup(0)));
         }
+        if (led.size() == 1 && host.getGroupCount() == 1) return handleTransferLeadership(led.get(0), target);
 
-        out.println(gson.toJson(resp));
+        List<CompletableFuture<String>> results = new ArrayList<>(led.size());
+        for (RaftGroup group : led) results.add(handleTransferLeadership(group, target));
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            StringBuilder groups = new StringBuilder();
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0) groups.append(',');
+                groups.append('"').append(led.get(i).getGroupId()).append("\":").append(results.get(i).join());
+            }
+            return "{\"status\":\"ok\",\"groups\":{" + groups + "}}";
+        });
     }
 
-    /**Handles the client command*/
-    private void handleClientCommand(JsonObject json, PrintWriter out) {
-        synchronized (nodeState) {
-            // match your client’s message format
-            String command = json.has("data") ? json.get("data").getAsString() : null;
-            System.out.println("[Client->Server " + port + "] Received client command JSON: " + json);
+    /**Handles the client command, the ack is only sent once the group commit batch holding it is durable*/
+    private CompletableFuture<String> handleClientCommand(RaftGroup group, JsonObject json, String command) {
+        NodeState nodeState = group.getNodeState();
+        System.out.println("[Client->Server " + port + "] Received client command JSON: " + json);
+
+        if (command == null || command.isEmpty()) {
+            return CompletableFuture.completedFuture("{\"status\":\"error\",\"message\":\"Empty command\"}");
+        }
+
+        if (nodeState.getRole() != NodeRole.LEADER) {
+            return CompletableFuture.completedFuture(redirectResponse(group));
+        }
+        if (group.getElectionManager().isTransferringLeadership()) {
+            return CompletableFuture.completedFuture(TRANSFER_IN_PROGRESS);
+        }
+
+        return group.getGroupCommitter().submit(command).handle((index, error) -> {
+            if (error != null) {
+                /**Leadership was lost before the batch was written*/
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                return nodeState.getRole() != NodeRole.LEADER ? redirectResponse(group)
+                        : "{\"status\":\"error\",\"message\":\"" + cause.getMessage() + "\"}";
+            }
+            System.out.println(tag(group) + " Client command committed -> " + command);
+            return "{\"status\":\"ok\",\"index\":" + index + ",\"message\":\"Command committed: " + command + "\"}";
+        });
+    }
 
+    /**
+     * Commits every command of the batch as its own entry; the response reports each command's index in its group's
+     * log. A batch naming its group is committed there. Otherwise each command goes to the group owning its key:
+     * a batch that falls in one group is handled as if it named it, so a client is redirected to that group's leader,
+     * while the parts of a batch spanning groups are committed here or forwarded to their group's leader.
+     */
+    private CompletableFuture<ClientBatchResponse> handleClientBatch(int groupId, ClientBatch batch) {
+        List<String> commands = batch.getCommands();
+        if (commands == null || commands.isEmpty()) {
+            return CompletableFuture.completedFuture(new ClientBatchResponse("ok", null, new long[0]));
+        }
+        for (String command : commands) {
+            /**An empty entry is the leader's no-op, it would be acknowledged and then skipped by every state machine*/
             if (command == null || command.isEmpty()) {
-                out.println("{\"status\":\"error\",\"message\":\"Empty command\"}");
-                return;
+                System.out.println("[Client->Server " + port + "] Rejected client batch: Empty command");
+                return CompletableFuture.completedFuture(new ClientBatchResponse("error", null, null));
             }
+        }
+        if (groupId != Frame.NO_GROUP) {
+            RaftGroup group = host.getGroup(groupId);
+            return group != null ? commitInGroup(group, commands)
+                    : CompletableFuture.completedFuture(new ClientBatchResponse("error", null, null));
+        }
+
+        Map<RaftGroup, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            positions.computeIfAbsent(host.groupForCommand(commands.get(i)), g -> new ArrayList<>()).add(i);
+        }
+        if (positions.size() == 1) return commitInGroup(positions.keySet().iterator().next(), commands);
 
-            if (nodeState.getRole() != NodeRole.LEADER) {
-                String leaderId = nodeState.getLeaderId() != null ? nodeState.getLeaderId() : "unknown";
-                out.println("{\"status\":\"redirect\",\"leader\":\"" + leaderId + "\",\"message\":\"This node is not the leader\"}");
-                return;
+        long[] indexes = new long[commands.size()];
+        List<CompletableFuture<Void>> parts = new ArrayList<>(positions.size());
+        positions.forEach((group, at) -> {
+            List<String> part = new ArrayList<>(at.size());
+            for (int i : at) part.add(commands.get(i));
+            parts.add(commitPart(group, part).handle((resp, error) -> {
+                long[] partIndexes = resp != null ? resp.getIndexes() : null;
+                for (int i = 0; i < at.size(); i++) {
+                    indexes[at.get(i)] = partIndexes != null && i < partIndexes.length ? partIndexes[i] : -1;
+                }
+                return null;
+            }));
+        });
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            for (long index : indexes) {
+                /**The client retries what failed, those parts are forwarded again once their leader is known*/
+                if (index <= 0) return new ClientBatchResponse("error", null, indexes);
             }
+            return new ClientBatchResponse("ok", null, indexes);
+        });
+    }
 
-            // Append client command as a new log entry
-            nodeState.appendEntries(
-                    nodeState.getLastLogIndex(),
-                    Collections.singletonList(command),
-                    nodeState.getCurrentTerm()
-            );
-            nodeState.setCommitIndex(nodeState.getLastLogIndex());
-            nodeState.saveLog(); // ensure persistence
+    /**Part of a batch spanning groups, committed here when this node leads the group, else on the group's leader*/
+    private CompletableFuture<ClientBatchResponse> commitPart(RaftGroup group, List<String> commands) {
+        NodeState nodeState = group.getNodeState();
+        if (nodeState.getRole() == NodeRole.LEADER) return commitInGroup(group, commands);
+        int leaderPort = nodeState.getLeaderPort();
+        if (leaderPort < 0 || leaderPort == port) {
+            return CompletableFuture.completedFuture(new ClientBatchResponse("redirect", null, null));
+        }
+        return MessageClient.clientBatch("localhost", leaderPort, group.getGroupId(), new ClientBatch(commands));
+    }
+
+    private CompletableFuture<ClientBatchResponse> commitInGroup(RaftGroup group, List<String> commands) {
+        NodeState nodeState = group.getNodeState();
+        if (nodeState.getRole() != NodeRole.LEADER) {
+            return CompletableFuture.completedFuture(new ClientBatchResponse("redirect", nodeState.getLeaderId(), null));
+        }
+        if (group.getElectionManager().isTransferringLeadership()) {
+            /**The client retries after a short delay and is redirected once the new leader is known*/
+            return CompletableFuture.completedFuture(new ClientBatchResponse("error", null, null));
+        }
 
-            out.println("{\"status\":\"ok\",\"message\":\"Command committed: " + command + "\"}");
-            System.out.println("[Server " + port + "] Client command committed -> " + command);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            futures.add(group.getGroupCommitter().submit(command));
         }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            long[] indexes = new long[futures.size()];
+            boolean allCommitted = true;
+            for (int i = 0; i < indexes.length; i++) {
+                if (futures.get(i).isCompletedExceptionally()) {
+                    indexes[i] = -1;
+                    allCommitted = false;
+                } else {
+                    indexes[i] = futures.get(i).join();
+                }
+            }
+            if (allCommitted) {
+                System.out.println(tag(group) + " Client batch of " + indexes.length + " committed up to index " + indexes[indexes.length - 1]);
+                return new ClientBatchResponse("ok", null, indexes);
+            }
+            /**Leadership was lost before every command was committed, the client retries the rest elsewhere*/
+            return nodeState.getRole() != NodeRole.LEADER
+                    ? new ClientBatchResponse("redirect", nodeState.getLeaderId(), indexes)
+                    : new ClientBatchResponse("error", null, indexes);
+        });
     }
 
-    /**Handles the leader information*/
-    private void handleLeaderQuery(PrintWriter out) {
-        synchronized (nodeState) {
-            String leader = nodeState.getLeaderId() != null ? nodeState.getLeaderId() : "unknown";
-            out.println("{\"leaderId\":\"" + leader + "\"}");
+    /**
+     * Reads a key without going through the log, on any node. By default the read is linearizable (ReadIndex): the
+     * leader confirms it is still leader, a follower asks the leader for the read index instead, and either one answers
+     * once its own state machine has applied that index. With maxStalenessMs >= 0 the node answers straight from its
+     * state machine, provided a follower heard from the leader, or a leader heard from a quorum, within that many
+     * milliseconds; a leader that did not goes through ReadIndex instead.
+     */
+    private CompletableFuture<String> handleGet(RaftGroup group, String key, long maxStalenessMs) {
+        NodeState nodeState = group.getNodeState();
+        ElectionManager electionManager = group.getElectionManager();
+        if (maxStalenessMs >= 0) {
+            boolean leader = nodeState.getRole() == NodeRole.LEADER;
+            long ageMs = leader ? electionManager.getQuorumContactAgeMs() : nodeState.getLeaderContactAgeMs();
+            if (ageMs <= maxStalenessMs) {
+                return CompletableFuture.completedFuture(readResponse(nodeState, key, nodeState.getLastApplied()));
+            }
+            /**A leader that cannot vouch for its state confirms it like a linearizable read*/
+            if (!leader) return CompletableFuture.completedFuture(redirectResponse(group));
+        }
+
+        CompletableFuture<Integer> readIndex = nodeState.getRole() == NodeRole.LEADER
+                ? electionManager.readIndex() : electionManager.leaderReadIndex();
+        return readIndex
+                .thenCompose(index -> nodeState.awaitApplied(index).thenApply(applied -> index))
+                .orTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .handle((index, error) -> {
+                    if (error != null) {
+                        return nodeState.getRole() != NodeRole.LEADER ? redirectResponse(group)
+                                : "{\"status\":\"error\",\"message\":\"Read could not be confirmed\"}";
+                    }
+                    return readResponse(nodeState, key, index);
+                });
+    }
+
+    private String readResponse(NodeState nodeState, String key, int index) {
+        JsonObject resp = new JsonObject();
+        resp.addProperty("status", "ok");
+        resp.addProperty("index", index);
+        resp.addProperty("key", key);
+        resp.addProperty("value", nodeState.query(key));
+        return gson.toJson(resp);
+    }
+
+    /**Leader side of a follower read: a confirmed read index, or the leader this node knows of*/
+    private CompletableFuture<ReadIndexResponse> handleReadIndex(RaftGroup group, ReadIndex request) {
+        NodeState nodeState = group.getNodeState();
+        if (nodeState.getRole() != NodeRole.LEADER) {
+            return CompletableFuture.completedFuture(new ReadIndexResponse(false, -1, nodeState.getLeaderId()));
+        }
+        return group.getElectionManager().readIndex().handle((index, error) -> error == null
+                ? new ReadIndexResponse(true, index, nodeState.getLeaderId())
+                : new ReadIndexResponse(false, -1, nodeState.getLeaderId()));
+    }
+
+    private String redirectResponse(RaftGroup group) {
+        String leaderId = group.getNodeState().getLeaderId();
+        String leader = leaderId != null ? leaderId : "unknown";
+        return "{\"status\":\"redirect\",\"leader\":\"" + leader + "\",\"message\":\"This node is not the leader\"}";
+    }
+
+    /**Handles the leader information: the leader of group 0, and of every group when there are several*/
+    private String handleLeaderQuery() {
+        String leaderId = host.getGroup(0).getNodeState().getLeaderId();
+        String leader = leaderId != null ? leaderId : "unknown";
+        if (host.getGroupCount() == 1) return "{\"leaderId\":\"" + leader + "\"}";
+
+        JsonObject groups = new JsonObject();
+        for (RaftGroup group : host.getGroups()) {
+            groups.addProperty(String.valueOf(group.getGroupId()), group.getNodeState().getLeaderId());
         }
+        JsonObject resp = new JsonObject();
+        resp.addProperty("leaderId", leader);
+        resp.add("groupLeaders", groups);
+        return gson.toJson(resp);
     }
 }
@@ -0,0 +1,220 @@
+package com.distributedlog.network;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long-lived connection to one peer. Any number of requests can be outstanding at once; each carries a requestId
+ * that the server echoes back, and a reader thread completes the matching future when the response arrives.
+ * Callers only queue their encoded frame: a writer thread of the connection connects, writes and flushes, so a NodeLoop
+ * sending to a peer that is slow, unreachable or not reading never waits for it. Frames queued while a write is
+ * running go out together with one flush.
+ * A broken connection fails everything outstanding on it and is re-established by the writer with exponential backoff.
+ */
+class PeerConnection implements Runnable {
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("distributedlog.rpc.connectTimeoutMs", 1000);
+    /**Frames waiting for a peer that is not taking them; beyond this, requests fail at once rather than pile up*/
+    private static final int MAX_QUEUED_FRAMES = Integer.getInteger("distributedlog.rpc.maxQueuedFrames", 4096);
+    private static final long MIN_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+
+    private final String host;
+    private final int port;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentLinkedQueue<Outgoing> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Thread writer;
+    /**Set while the writer is parked or about to park, senders only unpark it then*/
+    private volatile boolean idle;
+
+    /**Only touched by the writer, and by the reader under the connection's monitor when the link breaks*/
+    private Link link;
+    private long backoffMs = 0;
+    private long nextAttemptAt = 0;
+
+    PeerConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.writer = new Thread(this, "peer-" + host + ":" + port + "-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    long nextRequestId() {
+        return nextRequestId.incrementAndGet();
+    }
+
+    /**Queues one encoded request and returns a future for the response frame carrying the same requestId*/
+    CompletableFuture<Frame> send(long requestId, ByteBuffer frame) {
+        CompletableFuture<Frame> future = new CompletableFuture<>();
+        if (queued.incrementAndGet() > MAX_QUEUED_FRAMES) {
+            queued.decrementAndGet();
+            future.completeExceptionally(new IOException("Too many requests queued for " + host + ":" + port));
+            return future;
+        }
+        queue.offer(new Outgoing(requestId, frame, future));
+        if (idle) LockSupport.unpark(writer);
+        return future;
+    }
+
+    @Override
+    public void run() {
+        List<Outgoing> batch = new ArrayList<>();
+        while (true) {
+            Outgoing next;
+            while ((next = queue.poll()) != null) {
+                queued.decrementAndGet();
+                /**A request that timed out while queued is not worth sending*/
+                if (!next.future.isDone()) batch.add(next);
+            }
+            if (batch.isEmpty()) {
+                idle = true;
+                if (queue.isEmpty()) LockSupport.park(this);
+                idle = false;
+                continue;
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**On the writer thread*/
+    private void write(List<Outgoing> batch) {
+        Link current;
+        try {
+            current = currentLink();
+        } catch (IOException e) {
+            for (Outgoing o : batch) o.future.completeExceptionally(e);
+            return;
+        }
+
+        for (Outgoing o : batch) {
+            current.pending.put(o.requestId, o.future);
+            o.future.whenComplete((r, t) -> current.pending.remove(o.requestId));
+        }
+        try {
+            for (Outgoing o : batch) {
+                current.out.write(o.frame.array(), o.frame.arrayOffset() + o.frame.position(), o.frame.remaining());
+            }
+            current.out.flush();
+        } catch (IOException e) {
+            linkFailed(current, e);
+        }
+    }
+
+    /**On the writer thread, the only one that opens links*/
+    private Link currentLink() throws IOException {
+        synchronized (this) {
+            if (link != null) return link;
+            long now = System.currentTimeMillis();
+            if (now < nextAttemptAt) {
+                throw new ConnectException("Backing off reconnect to " + host + ":" + port + " for " + (nextAttemptAt - now) + " ms");
+            }
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+        } catch (IOException e) {
+            socket.close();
+            synchronized (this) {
+                scheduleReconnect();
+            }
+            System.err.println("[Client] Connection error to " + host + ":" + port + " -> " + e.getMessage());
+            throw e;
+        }
+
+        Link opened = new Link(socket);
+        Thread reader = new Thread(() -> readResponses(opened), "peer-" + host + ":" + port + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+        synchronized (this) {
+            backoffMs = 0;
+            link = opened;
+        }
+        return opened;
+    }
+
+    private void scheduleReconnect() {
+        backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        nextAttemptAt = System.currentTimeMillis() + backoffMs;
+    }
+
+    private void readResponses(Link current) {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] buf = new byte[64 * 1024];
+        try {
+            int n;
+            while ((n = current.in.read(buf)) != -1) {
+                decoder.feed(ByteBuffer.wrap(buf, 0, n), frame -> {
+                    CompletableFuture<Frame> future = current.pending.remove(frame.requestId);
+                    if (future != null) future.complete(frame);
+                });
+            }
+            linkFailed(current, new IOException("Connection closed by peer"));
+        } catch (IOException e) {
+            linkFailed(current, e);
+        }
+    }
+
+    private void linkFailed(Link failed, IOException cause) {
+        synchronized (this) {
+            if (link == failed) {
+                link = null;
+                scheduleReconnect();
+                System.err.println("[Client] Connection to " + host + ":" + port + " lost -> " + cause.getMessage());
+            }
+        }
+        try {
+            failed.socket.close();
+        } catch (IOException ignored) {
+        }
+        for (CompletableFuture<Frame> future : failed.pending.values()) {
+            future.completeExceptionally(cause);
+        }
+        failed.pending.clear();
+    }
+
+    private static class Outgoing {
+        private final long requestId;
+        private final ByteBuffer frame;
+        private final CompletableFuture<Frame> future;
+
+        Outgoing(long requestId, ByteBuffer frame, CompletableFuture<Frame> future) {
+            this.requestId = requestId;
+            this.frame = frame;
+            this.future = future;
+        }
+    }
+
+    /**One physical connection together with the requests waiting on it*/
+    private static class Link {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final Map<Long, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = socket.getInputStream();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.distributedlog.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * NIO flavour of the message server: one selector thread does all socket reads and writes, requests are handed to
+ * a small worker pool that decodes them and queues them to the NodeLoop, since reads still take the state machine's
+ * apply lock and the selector must never block. Frames from one connection are
+ * handled in arrival order; their responses are queued back to the selector thread and written when writable.
+ */
+class SelectorServer implements Runnable {
+    private static final int WORKERS = Integer.getInteger("distributedlog.server.workers",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private final int port;
+    private final Function<Frame, CompletableFuture<ByteBuffer>> handler;
+    private final ExecutorService workers;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    SelectorServer(int port, Function<Frame, CompletableFuture<ByteBuffer>> handler) {
+        this.port = port;
+        this.handler = handler;
+        this.workers = newWorkerPool(port);
+    }
+
+    /**Platform threads that run the request handlers, shared by both server modes*/
+    static ExecutorService newWorkerPool(int port) {
+        return Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread t = new Thread(r, "server-" + port + "-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void run() {
+        try (Selector sel = Selector.open(); ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = sel;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("[Server] Listening on port " + port + " (nio, " + WORKERS + " workers)");
+
+            while (true) {
+                selector.select();
+
+                Connection ready;
+                while ((ready = pendingWrites.poll()) != null) {
+                    if (ready.key.isValid()) ready.flush();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**Per-connection state; read and flush only ever run on the selector thread*/
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final Queue<Frame> inbox = new ConcurrentLinkedQueue<>();
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                decoder.feed(readBuffer, this::enqueue);
+                readBuffer.clear();
+            } catch (IOException e) {
+                System.out.println("[Server " + port + "] Connection closed: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void enqueue(Frame frame) {
+            inbox.add(frame);
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) workers.execute(this::drain);
+        }
+
+        /**Runs on a worker; at most one drain per connection at a time keeps the frames in order*/
+        private void drain() {
+            Frame frame;
+            while ((frame = inbox.poll()) != null) {
+                handler.apply(frame).thenAccept(this::respond);
+            }
+            draining.set(false);
+            if (!inbox.isEmpty()) scheduleDrain();
+        }
+
+        private void respond(ByteBuffer response) {
+            if (response == null) return;
+            outbox.add(response);
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void flush() {
+            try {
+                ByteBuffer head;
+                while ((head = outbox.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbox.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
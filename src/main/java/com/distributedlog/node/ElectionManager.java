@@ -2,63 +2,202 @@ package com.distributedlog.node;
 
 import com.distributedlog.messages.AppendEntries;
 import com.distributedlog.messages.AppendEntriesResponse;
+import com.distributedlog.messages.InstallSnapshot;
+import com.distributedlog.messages.InstallSnapshotResponse;
+import com.distributedlog.messages.ReadIndex;
 import com.distributedlog.messages.RequestVote;
+import com.distributedlog.messages.RequestVoteResponse;
+import com.distributedlog.messages.TimeoutNow;
 import com.distributedlog.network.MessageClient;
-import com.google.gson.Gson;
+import com.distributedlog.storage.SnapshotStore.Snapshot;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Elections and the leader's side of replication and reads. Timer ticks, client appends and every RPC response are
+ * turned into tasks on the node's loop, so the state kept here is owned by that thread like NodeState itself;
+ * requests go out through the asynchronous MessageClient and snapshots are streamed from a thread of their own.
+ */
 public class ElectionManager {
     private final NodeState nodeState;
+    private final NodeLoop loop;
+    /**Group this manager elects and replicates, every RPC it sends names it*/
+    private final int groupId;
     private final int selfPort;
     private final List<Integer> peerPorts;
-    private final Map<Integer, Integer> nextIndex = new ConcurrentHashMap<>();
-    private final Map<Integer, Integer> matchIndex = new ConcurrentHashMap<>();
-    private ScheduledExecutorService leaderScheduler;
-    private final Gson gson = new Gson();
+    private final Map<Integer, FollowerProgress> progress = new HashMap<>();
+    private final Set<Integer> snapshotTransfers = ConcurrentHashMap.newKeySet();
+    /**Set while this node leads, the heartbeat tick and replication rounds only run then*/
+    private volatile boolean leading;
+    /**When the next heartbeat tick is due, only touched on the timer thread*/
+    private long nextHeartbeatNanos;
+    private final AtomicBoolean replicationScheduled = new AtomicBoolean();
+    /**Highest index the leader has forced to its own disk, its vote towards a commit quorum*/
+    private int localSyncedIndex;
+    /**Scratch space for the leader's and every follower's match index when looking for the quorum*/
+    private final int[] quorumMatch;
+    /**Index of the no-op entry that opened this term; reads wait for it since earlier commits are only known then*/
+    private int termStartIndex;
+    /**Read from any thread together with quorumAckedNanos*/
+    private volatile long leaderSinceNanos;
+    /**Latest send time a quorum has acknowledged, published for staleness checks off the loop*/
+    private volatile long quorumAckedNanos;
+
+    /**Reads waiting for a quorum to confirm leadership after they arrived*/
+    private final List<PendingRead> pendingReads = new ArrayList<>();
+    /**A ReadIndex heartbeat round is scheduled or waiting for its quorum*/
+    private boolean readRoundActive;
+    private boolean readRoundSent;
+    private long readRoundSentNanos;
+
+    /**Follower side: reads arriving while a ReadIndex request is out share the next one, guarded by itself*/
+    private final Object leaderReadLock = new Object();
+    private CompletableFuture<Integer> nextLeaderRead;
+    private boolean leaderReadInFlight;
+
+    /**Follower taking over leadership while a transfer is in progress, -1 otherwise*/
+    private int transferTarget = -1;
+    /**Writes are refused while set, read from any thread*/
+    private volatile boolean transferring;
+    private long transferStartNanos;
+    private boolean timeoutNowSent;
+    private CompletableFuture<Long> transferDone;
+    /**
+     * Set once a TimeoutNow went out: the follower campaigns at once and the others vote for it without waiting for
+     * this leader to go quiet, so the lease no longer holds for the rest of the term.
+     */
+    private boolean leaseRevoked;
+
+    /**Node that should lead this group when it is healthy, so the leaders of a host's groups are spread out; -1 for none*/
+    private volatile int preferredLeaderPort = -1;
+    private long nextRebalanceNanos;
+
+    private static final int SNAPSHOT_CHUNK_BYTES = Integer.getInteger("distributedlog.snapshot.chunkBytes", 256 * 1024);
+    /**AppendEntries requests allowed in flight to one follower once it is known to match the leader's log*/
+    private static final int MAX_INFLIGHT = Integer.getInteger("distributedlog.replication.maxInflight", 8);
+    /**Upper bound on the entries carried by one AppendEntries, so the window is spread over several requests*/
+    private static final int MAX_BATCH_ENTRIES = Integer.getInteger("distributedlog.replication.maxBatchEntries", 512);
+    /**A follower that has been sent nothing for this long gets an empty AppendEntries*/
+    private static final long HEARTBEAT_INTERVAL_MS = Long.getLong("distributedlog.heartbeat.intervalMs", 500);
+    /**How long a replication round waits for more appends to join it*/
+    private static final long REPLICATION_COALESCE_MICROS = Long.getLong("distributedlog.replication.coalesceMicros", 100);
+    /**Serve reads under a leader lease instead of confirming leadership with a heartbeat round per batch of reads*/
+    private static final boolean LEASE_READS = Boolean.getBoolean("distributedlog.read.lease");
+    /**
+     * A follower that accepted an AppendEntries does not time out for at least the minimum election timeout,
+     * counted from when the leader sent it. The default keeps a tenth of that as a margin for clock drift.
+     */
+    private static final long LEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("distributedlog.read.leaseMs", NodeTimers.ELECTION_TIMEOUT_MIN_MS * 9 / 10));
+    /**A leadership transfer that has not handed over within this time is abandoned and writes resume*/
+    private static final long TRANSFER_TIMEOUT_MS = Long.getLong("distributedlog.transfer.timeoutMs", NodeTimers.ELECTION_TIMEOUT_MIN_MS);
+    /**How long a leader keeps a group before handing it back to its preferred leader, and the wait between attempts*/
+    private static final long REBALANCE_DELAY_MS = Long.getLong("distributedlog.groups.rebalanceMs", 10000);
 
     public ElectionManager(NodeState nodeState, int selfPort, List<Integer> peerPorts) {
         this.nodeState = nodeState;
+        this.loop = nodeState.getLoop();
+        this.groupId = nodeState.getGroupId();
         this.selfPort = selfPort;
         this.peerPorts = peerPorts;
+        this.quorumMatch = new int[peerPorts.size() + 1];
     }
 
+    /**Starts the heartbeat tick, once the group is fully built*/
+    public void start() {
+        SharedTimer.register(this::heartbeatTick);
+    }
+
+    /**Election timeout, called from the timer thread; the pre-vote and election run on the loop*/
     public void startElection() {
-        synchronized (nodeState) {
-            nodeState.incrementTerm();
-            nodeState.setVotedFor("Self");
-            nodeState.setRole(NodeRole.CANDIDATE);
+        loop.execute(this::runPreVote);
+    }
+
+    /**
+     * Asks the peers whether they would vote for this node in the next term, without anyone changing their term or
+     * vote. Only once a majority would does the real election start, so a node that was cut off or paused and timed
+     * out cannot depose a working leader by bumping the term when it comes back.
+     */
+    private void runPreVote() {
+        if (nodeState.getRole() == NodeRole.LEADER) return;
+        int term = nodeState.getCurrentTerm();
+
+        System.out.println("[Election] Pre-vote for term " + (term + 1));
+
+        RequestVote preVote = new RequestVote(term + 1, nodeState.getNodeId(),
+                nodeState.getLastLogIndex(), nodeState.getLastLogTerm(), true, false);
+        requestVotes(preVote, () -> {
+            if (nodeState.getCurrentTerm() == term && nodeState.getRole() != NodeRole.LEADER) runElection(false);
+        });
+    }
+
+    /**
+     * TimeoutNow from the leader of the current term, on the loop: its log is matched, so this node campaigns at once,
+     * skipping the pre-vote. Returns false when the request is stale or this log has not caught up yet.
+     */
+    public boolean onTimeoutNow(TimeoutNow request) {
+        if (request.getTerm() != nodeState.getCurrentTerm() || nodeState.getRole() != NodeRole.FOLLOWER
+                || nodeState.getLastLogIndex() < request.getLastLogIndex()) {
+            return false;
         }
+        System.out.println("[Election] TimeoutNow from " + request.getLeaderId() + ", taking over leadership");
+        loop.execute(() -> {
+            if (nodeState.getCurrentTerm() == request.getTerm() && nodeState.getRole() == NodeRole.FOLLOWER) runElection(true);
+        });
+        return true;
+    }
+
+    private void runElection(boolean leadershipTransfer) {
+        nodeState.incrementTermAndVote(nodeState.getNodeId());
+        nodeState.setRole(NodeRole.CANDIDATE);
+        int term = nodeState.getCurrentTerm();
 
-        System.out.println("[Election] Starting election for term " + nodeState.getCurrentTerm());
+        System.out.println("[Election] Starting election for term " + term);
 
-        RequestVote voteRequest = new RequestVote(nodeState.getCurrentTerm(), "Self");
+        RequestVote voteRequest = new RequestVote(term, nodeState.getNodeId(),
+                nodeState.getLastLogIndex(), nodeState.getLastLogTerm(), false, leadershipTransfer);
 
+        /**The vote for itself is on disk before anyone is asked for theirs*/
+        nodeState.persist().thenRun(() -> requestVotes(voteRequest, () -> {
+            if (nodeState.getRole() == NodeRole.CANDIDATE && nodeState.getCurrentTerm() == term) {
+                nodeState.setRole(NodeRole.LEADER);
+                System.out.println("[Election] Node became LEADER for term " + nodeState.getCurrentTerm());
+                becomeLeader();
+            }
+        }));
+    }
+
+    /**Sends the request to every peer and runs onMajority on the loop once a majority, this node included, granted it*/
+    private void requestVotes(RequestVote request, Runnable onMajority) {
+        String kind = request.isPreVote() ? "Pre-vote" : "Vote";
         AtomicInteger votesGranted = new AtomicInteger(1); // vote for self
         int majority = (peerPorts.size() + 1) / 2 + 1;
+        if (votesGranted.get() >= majority) {
+            loop.execute(onMajority);
+            return;
+        }
 
         for (int port : peerPorts) {
-            new Thread(() -> {
-                try {
-                    String responseJson = MessageClient.sendMessage("localhost", port, voteRequest);
-                    if (responseJson != null && responseJson.contains("\"voteGranted\":true")) {
-                        int granted = votesGranted.incrementAndGet();
-                        System.out.println("[Election] Vote granted by node on port " + port + ". Total: " + granted);
-
-                        synchronized (nodeState) {
-                            if (granted >= majority && nodeState.getRole() == NodeRole.CANDIDATE) {
-                                nodeState.setRole(NodeRole.LEADER);
-                                System.out.println("[Election] Node became LEADER for term " + nodeState.getCurrentTerm());
-                                becomeLeader();
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    System.out.println("[Client] Connection error to localhost:" + port + " -> " + e.getMessage());
+            MessageClient.requestVote("localhost", port, groupId, request).whenComplete((response, error) -> loop.execute(() -> {
+                if (error != null) {
+                    System.out.println("[Client] Connection error to localhost:" + port + " -> " + error.getMessage());
+                    return;
                 }
-            }).start();
+                if (response == null) return;
+                if (response.getTerm() > nodeState.getCurrentTerm()) {
+                    /**This node is behind, it learns the term and waits for the leader of it*/
+                    nodeState.stepDownToTerm(response.getTerm());
+                    return;
+                }
+                if (!response.isVoteGranted()) return;
+
+                int granted = votesGranted.incrementAndGet();
+                System.out.println("[Election] " + kind + " granted by node on port " + port + ". Total: " + granted);
+                if (granted == majority) onMajority.run();
+            }));
         }
     }
 
@@ -66,133 +205,607 @@ public class ElectionManager {
     private void becomeLeader() {
         System.out.println("[Leader] Initializing leader state for term " + nodeState.getCurrentTerm());
 
-        synchronized (nodeState) {
-            //set self as leader
-            nodeState.setLeaderId(nodeState.getNodeId());
+        //set self as leader
+        nodeState.setLeaderId(nodeState.getNodeId());
+        failPendingReads();
+        leaseRevoked = false;
 
-            int lastIndex = nodeState.getLastLogIndex();
-            for (int p : peerPorts) {
-                nextIndex.put(p, lastIndex + 1);
-                matchIndex.put(p, 0);
+        /**Entries of earlier terms are only known to be committed once one of this term is, the no-op gets there at once*/
+        localSyncedIndex = nodeState.getLastLogIndex();
+        termStartIndex = nodeState.appendAsLeader(Collections.singletonList(LogEntry.NOOP));
+        leaderSinceNanos = System.nanoTime();
+        quorumAckedNanos = leaderSinceNanos - 1;
+        nextRebalanceNanos = leaderSinceNanos;
+        for (int p : peerPorts) {
+            progress.put(p, new FollowerProgress(termStartIndex, leaderSinceNanos));
+        }
+
+        int noopIndex = termStartIndex;
+        nodeState.persist().thenRun(() -> onLocalSync(noopIndex));
+        leading = true;
+        sendHeartbeats();
+    }
+
+    /**SharedTimer tick, queues a heartbeat round on the loop every half heartbeat interval while leading*/
+    private void heartbeatTick() {
+        if (!leading) return;
+        long now = System.nanoTime();
+        /**A node handing over leadership notices within a tick that it stepped down, which ends the transfer*/
+        boolean handedOver = transferring && nodeState.getRole() != NodeRole.LEADER;
+        if (now - nextHeartbeatNanos < 0 && !handedOver) return;
+        nextHeartbeatNanos = now + HEARTBEAT_INTERVAL_MS * 1_000_000 / 2;
+        loop.execute(this::sendHeartbeats);
+    }
+
+    /** Heartbeat loop, only followers that have been idle for a heartbeat interval are sent one */
+    private void sendHeartbeats() {
+        /**for each peer send AppendEntries that may contain entries (if leader has new ones)*/
+        for (int peer : peerPorts) {
+            replicateToPeer(peer, true);
+        }
+
+        /**Leadership can also be lost to an incoming RPC, pending reads are failed on the next tick*/
+        if (nodeState.getRole() != NodeRole.LEADER) {
+            stopLeading();
+            failPendingReads();
+            return;
+        }
+        if (readRoundActive && readRoundSent && System.nanoTime() - readRoundSentNanos >= HEARTBEAT_INTERVAL_MS * 1_000_000) {
+            sendReadRound();
+        }
+        if (transferTarget >= 0) {
+            if (System.nanoTime() - transferStartNanos >= TRANSFER_TIMEOUT_MS * 1_000_000) {
+                abortTransfer("Leadership transfer to " + transferTarget + " did not complete in " + TRANSFER_TIMEOUT_MS + " ms");
+            } else {
+                /**A TimeoutNow that got no answer is sent again*/
+                maybeSendTimeoutNow();
             }
+        } else if (preferredLeaderPort >= 0 && preferredLeaderPort != selfPort) {
+            maybeRebalance();
         }
+    }
 
-        startLeaderSchedule();
+    public void setPreferredLeader(int port) {
+        this.preferredLeaderPort = port;
     }
 
-    private void startLeaderSchedule() {
-        if (leaderScheduler != null && !leaderScheduler.isShutdown()) {
-            leaderScheduler.shutdownNow();
+    /**
+     * Hands the group back to its preferred leader once this node has led it for the rebalance delay, provided that
+     * node is answering and its log matches. Writes to this group pause for the handover, a few milliseconds.
+     */
+    private void maybeRebalance() {
+        long now = System.nanoTime();
+        if (now - leaderSinceNanos < REBALANCE_DELAY_MS * 1_000_000 || now - nextRebalanceNanos < 0) return;
+        FollowerProgress fp = progress.get(preferredLeaderPort);
+        if (fp == null || fp.probing || now - fp.ackedSentNanos > 2 * HEARTBEAT_INTERVAL_MS * 1_000_000) return;
+
+        nextRebalanceNanos = now + REBALANCE_DELAY_MS * 1_000_000;
+        int target = preferredLeaderPort;
+        System.out.println("[Leader] Group " + groupId + " handing leadership back to its preferred leader " + target);
+        transferLeadership(target).whenComplete((pausedMs, error) -> {
+            if (error != null) System.out.println("[Leader] Group " + groupId + " rebalance to " + target + " failed: " + error.getMessage());
+        });
+    }
+
+    /**
+     * Hands leadership to the follower on targetPort, or to the most up to date one when targetPort is negative.
+     * New writes are refused from now on so the follower can catch up; once its log matches this one it is sent a
+     * TimeoutNow and campaigns immediately. Completes with the milliseconds writes were paused once this node has
+     * stepped down, or fails if the follower did not take over within the transfer timeout, writes resuming then.
+     */
+    public CompletableFuture<Long> transferLeadership(int targetPort) {
+        return loop.submit(() -> {
+            if (!leading || nodeState.getRole() != NodeRole.LEADER) {
+                return CompletableFuture.<Long>failedFuture(new IllegalStateException("This node is not the leader"));
+            }
+            if (transferTarget >= 0) {
+                return CompletableFuture.<Long>failedFuture(new IllegalStateException(
+                        "A leadership transfer to " + transferTarget + " is already in progress"));
+            }
+            int target = targetPort >= 0 ? targetPort : mostUpToDatePeer();
+            if (!progress.containsKey(target)) {
+                return CompletableFuture.<Long>failedFuture(new IllegalArgumentException("No follower on port " + target));
+            }
+
+            transferTarget = target;
+            transferring = true;
+            transferStartNanos = System.nanoTime();
+            timeoutNowSent = false;
+            transferDone = new CompletableFuture<>();
+            System.out.println("[Leader] Transferring leadership to " + target + ", new writes are refused until it takes over");
+            replicateToPeer(target, false);
+            maybeSendTimeoutNow();
+            return transferDone;
+        }).thenCompose(future -> future);
+    }
+
+    /**True while a leadership transfer is in progress and new writes are refused. Any thread*/
+    public boolean isTransferringLeadership() {
+        return transferring;
+    }
+
+    private int mostUpToDatePeer() {
+        int best = -1;
+        int bestMatch = -1;
+        for (int p : peerPorts) {
+            FollowerProgress fp = progress.get(p);
+            if (fp != null && fp.matchIndex > bestMatch) {
+                best = p;
+                bestMatch = fp.matchIndex;
+            }
         }
-        leaderScheduler = Executors.newSingleThreadScheduledExecutor();
-        leaderScheduler.scheduleAtFixedRate(this::sendHeartbeatsAndReplicate, 0, 500, TimeUnit.MILLISECONDS);
+        return best;
     }
 
-    /** Heartbeat and the replication loop */
-    private void sendHeartbeatsAndReplicate() {
-        /**for each peer send AppendEntries that may contain entries (if leader has new ones)*/
+    /**Sends the TimeoutNow once the target holds every entry of this log*/
+    private void maybeSendTimeoutNow() {
+        if (transferTarget < 0 || timeoutNowSent || nodeState.getRole() != NodeRole.LEADER) return;
+        FollowerProgress fp = progress.get(transferTarget);
+        int lastIndex = nodeState.getLastLogIndex();
+        if (fp == null || fp.matchIndex < lastIndex) return;
+
+        int target = transferTarget;
+        int term = nodeState.getCurrentTerm();
+        timeoutNowSent = true;
+        leaseRevoked = true;
+        System.out.println("[Leader] " + target + " has caught up to index " + lastIndex + ", sending TimeoutNow");
+        MessageClient.timeoutNow("localhost", target, groupId, new TimeoutNow(term, nodeState.getNodeId(), lastIndex))
+                .whenComplete((resp, error) -> loop.execute(() -> {
+                    if (transferTarget != target || nodeState.getCurrentTerm() != term) return;
+                    if (resp != null && resp.getTerm() > term) {
+                        nodeState.stepDownToTerm(resp.getTerm());
+                        stopLeading();
+                        failPendingReads();
+                    } else if (resp == null || !resp.isAccepted()) {
+                        /**Retried on the next heartbeat tick*/
+                        System.out.println("[Leader] TimeoutNow to " + target + " was not accepted" +
+                                (error != null ? ": " + error.getMessage() : ""));
+                        timeoutNowSent = false;
+                    }
+                }));
+    }
+
+    private void abortTransfer(String reason) {
+        System.out.println("[Leader] " + reason + ", accepting writes again");
+        CompletableFuture<Long> done = transferDone;
+        transferTarget = -1;
+        transferring = false;
+        transferDone = null;
+        nodeState.notifyAsync(() -> done.completeExceptionally(new IllegalStateException(reason)));
+    }
+
+    /**
+     * Returns the index a linearizable read has to observe: the commitIndex when the read arrived, once a quorum has
+     * acknowledged this node as leader after that moment. Reads arriving together share one heartbeat round, and any
+     * AppendEntries acknowledged in the meantime confirms them as well. With leases enabled, a quorum acknowledgement
+     * younger than the lease confirms the read without a round.
+     */
+    public CompletableFuture<Integer> readIndex() {
+        return loop.submit(() -> {
+            if (nodeState.getRole() != NodeRole.LEADER) {
+                return CompletableFuture.<Integer>failedFuture(new IllegalStateException("This node is not the leader"));
+            }
+            int index = Math.max(nodeState.getCommitIndex(), termStartIndex);
+            long now = System.nanoTime();
+            if (peerPorts.isEmpty() || (LEASE_READS && !leaseRevoked && leaseValid(now))) {
+                return CompletableFuture.completedFuture(index);
+            }
+
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            pendingReads.add(new PendingRead(index, now, future));
+            if (!readRoundActive) startReadRound();
+            return future;
+        }).thenCompose(future -> future);
+    }
+
+    /**
+     * Read index for a linearizable read served by this follower, obtained from the leader. The request is sent
+     * after the read arrived, as ReadIndex needs; reads that come in while one is out wait for the next and share it,
+     * so the leader sees at most one request per round trip from each follower.
+     */
+    public CompletableFuture<Integer> leaderReadIndex() {
+        synchronized (leaderReadLock) {
+            if (nextLeaderRead == null) nextLeaderRead = new CompletableFuture<>();
+            CompletableFuture<Integer> future = nextLeaderRead;
+            if (!leaderReadInFlight) sendLeaderReadIndex();
+            return future;
+        }
+    }
+
+    /**Holds leaderReadLock*/
+    private void sendLeaderReadIndex() {
+        CompletableFuture<Integer> batch = nextLeaderRead;
+        nextLeaderRead = null;
+        int leaderPort = nodeState.getLeaderPort();
+        if (leaderPort < 0 || leaderPort == selfPort) {
+            batch.completeExceptionally(new IllegalStateException("No leader known"));
+            return;
+        }
+
+        leaderReadInFlight = true;
+        MessageClient.readIndex("localhost", leaderPort, groupId, new ReadIndex(nodeState.getNodeId())).whenComplete((resp, error) -> {
+            nodeState.notifyAsync(() -> {
+                if (resp != null && resp.isSuccess()) {
+                    batch.complete(resp.getReadIndex());
+                } else {
+                    batch.completeExceptionally(error != null ? error : new IllegalStateException("Node " + leaderPort + " is not the leader"));
+                }
+            });
+            synchronized (leaderReadLock) {
+                leaderReadInFlight = false;
+                if (nextLeaderRead != null) sendLeaderReadIndex();
+            }
+        });
+    }
+
+    /**The round goes out once the reads already queued on the loop have joined it*/
+    private void startReadRound() {
+        if (!leading) {
+            failPendingReads();
+            return;
+        }
+        readRoundActive = true;
+        readRoundSent = false;
+        loop.execute(this::sendReadRound);
+    }
+
+    /**
+     * Empty AppendEntries to every follower, only to have leadership acknowledged. prevLogIndex is the follower's
+     * matchIndex so the request succeeds without disturbing the replication pipeline.
+     */
+    private void sendReadRound() {
+        if (nodeState.getRole() != NodeRole.LEADER || !readRoundActive) return;
+        int term = nodeState.getCurrentTerm();
+        Map<Integer, AppendEntries> requests = new HashMap<>();
         for (int peer : peerPorts) {
-            CompletableFuture.runAsync(() -> sendAppendEntriesToPeer(peer));
+            FollowerProgress fp = progress.get(peer);
+            if (fp == null) continue;
+            requests.put(peer, new AppendEntries(term, "Leader" + selfPort, fp.matchIndex,
+                    nodeState.getTermAtIndex(fp.matchIndex), null, null, nodeState.getCommitIndex()));
         }
+        long sentNanos = System.nanoTime();
+        readRoundSent = true;
+        readRoundSentNanos = sentNanos;
+
+        requests.forEach((peer, ae) -> MessageClient.appendEntries("localhost", peer, groupId, ae).whenComplete((resp, error) -> {
+            if (resp == null) return;
+            loop.execute(() -> {
+                if (resp.getTerm() > nodeState.getCurrentTerm()) {
+                    nodeState.stepDownToTerm(resp.getTerm());
+                    stopLeading();
+                    failPendingReads();
+                    return;
+                }
+                FollowerProgress fp = progress.get(peer);
+                if (fp != null && resp.isSuccess() && nodeState.getCurrentTerm() == term
+                        && nodeState.getRole() == NodeRole.LEADER) {
+                    acknowledge(fp, sentNanos);
+                }
+            });
+        }));
+    }
+
+    /**The follower accepted a request sent at sentNanos, which may confirm waiting reads*/
+    private void acknowledge(FollowerProgress fp, long sentNanos) {
+        if (sentNanos - fp.ackedSentNanos > 0) fp.ackedSentNanos = sentNanos;
+        long confirmed = quorumAckNanos();
+        quorumAckedNanos = confirmed;
+        if (pendingReads.isEmpty()) return;
+
+        List<PendingRead> ready = new ArrayList<>();
+        for (Iterator<PendingRead> it = pendingReads.iterator(); it.hasNext(); ) {
+            PendingRead read = it.next();
+            if (read.arrivedNanos - confirmed <= 0) {
+                ready.add(read);
+                it.remove();
+            }
+        }
+        if (!ready.isEmpty()) {
+            nodeState.notifyAsync(() -> {
+                for (PendingRead read : ready) read.future.complete(read.index);
+            });
+        }
+
+        /**Reads that arrived after the round went out need a round of their own*/
+        if (readRoundActive && readRoundSent && readRoundSentNanos - confirmed <= 0) readRoundActive = false;
+        if (!readRoundActive && !pendingReads.isEmpty()) startReadRound();
+    }
+
+    /**Latest send time a quorum has acknowledged, the leader itself counting as acknowledging everything*/
+    private long quorumAckNanos() {
+        long[] acks = new long[peerPorts.size()];
+        int i = 0;
+        for (int p : peerPorts) {
+            FollowerProgress fp = progress.get(p);
+            acks[i++] = fp != null ? fp.ackedSentNanos : leaderSinceNanos - 1;
+        }
+        Arrays.sort(acks);
+        int followersNeeded = (peerPorts.size() + 1) / 2;
+        return acks[acks.length - followersNeeded];
+    }
+
+    /**
+     * How far behind a read served straight from this leader's state machine can be: milliseconds since the newest
+     * send a quorum acknowledged, so a deposed leader that has not noticed yet does not pass for up to date.
+     * Long.MAX_VALUE when this node is not leader or no quorum has answered in this term. Any thread
+     */
+    public long getQuorumContactAgeMs() {
+        if (nodeState.getRole() != NodeRole.LEADER) return Long.MAX_VALUE;
+        if (peerPorts.isEmpty()) return 0;
+        long confirmed = quorumAckedNanos;
+        if (confirmed - leaderSinceNanos < 0) return Long.MAX_VALUE;
+        return (System.nanoTime() - confirmed) / 1_000_000;
+    }
+
+    private boolean leaseValid(long now) {
+        long confirmed = quorumAckNanos();
+        return confirmed - leaderSinceNanos >= 0 && now - confirmed < LEASE_NANOS;
+    }
+
+    private void failPendingReads() {
+        readRoundActive = false;
+        if (pendingReads.isEmpty()) return;
+        List<PendingRead> failed = new ArrayList<>(pendingReads);
+        pendingReads.clear();
+        nodeState.notifyAsync(() -> {
+            for (PendingRead read : failed) read.future.completeExceptionally(new IllegalStateException("This node is not the leader"));
+        });
+    }
+
+    /**
+     * Called after new entries are appended to the leader's log. Replication starts right away instead of on the
+     * next heartbeat; appends arriving within the coalescing delay are carried by the same round.
+     */
+    public void replicate() {
+        if (!leading || !replicationScheduled.compareAndSet(false, true)) return;
+        SharedTimer.schedule(() -> loop.execute(() -> {
+            replicationScheduled.set(false);
+            for (int peer : peerPorts) {
+                replicateToPeer(peer, false);
+            }
+        }), REPLICATION_COALESCE_MICROS, TimeUnit.MICROSECONDS);
     }
 
-    /** Send AppendEntries to a single peer, possibly including entries starting from nextIndex[peer] */
-    private void sendAppendEntriesToPeer(int peerPort) {
-        int nextIdx = nextIndex.getOrDefault(peerPort, 1);
-        int prevIndex = Math.max(0, nextIdx - 1);
-        int prevTerm;
-        List<String> entriesToSend = null; // null => heartbeat
-        int leaderCommit;
-        synchronized (nodeState) {
-            prevTerm = nodeState.getTermAtIndex(prevIndex);
+    /**Called once the leader's own log is durable up to index, which may complete a quorum*/
+    public void onLocalSync(int index) {
+        loop.execute(() -> {
+            if (nodeState.getRole() != NodeRole.LEADER) return;
+            localSyncedIndex = Math.max(localSyncedIndex, index);
+            tryAdvanceCommitIndex();
+        });
+    }
+
+    /**
+     * Sends AppendEntries to one peer until its window is full or it has every entry. nextIndex moves past each batch
+     * as soon as it is sent, so batches are pipelined instead of waiting a round trip each. A follower that is still
+     * being probed for the point where its log matches gets one request at a time.
+     * With heartbeat set, an empty AppendEntries goes out when there is nothing else to send.
+     */
+    private void replicateToPeer(int peerPort, boolean heartbeat) {
+        while (true) {
+            int lastSent;
+            FollowerProgress fp = progress.get(peerPort);
+            if (fp == null || nodeState.getRole() != NodeRole.LEADER) return;
+            if (fp.inFlight >= (fp.probing ? 1 : MAX_INFLIGHT)) return;
+
+            /**The entries this follower needs were compacted away, it has to catch up from the snapshot*/
+            if (fp.nextIndex <= nodeState.getLastIncludedIndex()) {
+                CompletableFuture.runAsync(() -> sendSnapshotToPeer(peerPort));
+                return;
+            }
+
+            int nextIdx = fp.nextIndex;
+            int prevIndex = nextIdx - 1;
             int lastIndex = nodeState.getLastLogIndex();
+            List<String> entriesToSend = null; // null => heartbeat
+            int[] entryTerms = null;
             if (nextIdx <= lastIndex) {
-                entriesToSend = nodeState.getCommandsFromTo(nextIdx, lastIndex);
+                lastSent = Math.min(lastIndex, nextIdx + MAX_BATCH_ENTRIES - 1);
+                LogSlice entries = nodeState.getEntriesFromTo(nextIdx, lastSent);
+                entriesToSend = entries;
+                entryTerms = entries.terms();
+            } else if (heartbeat && System.nanoTime() - fp.lastSentNanos >= HEARTBEAT_INTERVAL_MS * 1_000_000) {
+                lastSent = prevIndex;
+            } else {
+                return;
             }
-            leaderCommit = nodeState.getCommitIndex();
+
+            int term = nodeState.getCurrentTerm();
+            AppendEntries ae = new AppendEntries(term,
+                    "Leader" + selfPort,
+                    prevIndex,
+                    nodeState.getTermAtIndex(prevIndex),
+                    entriesToSend,
+                    entryTerms,
+                    nodeState.getCommitIndex());
+
+            fp.nextIndex = lastSent + 1;
+            fp.inFlight++;
+            long sentNanos = System.nanoTime();
+            fp.lastSentNanos = sentNanos;
+            int epoch = fp.epoch;
+
+            heartbeat = false;
+            int sentPrev = prevIndex;
+            int sentLast = lastSent;
+            MessageClient.appendEntries("localhost", peerPort, groupId, ae).whenComplete((resp, error) -> loop.execute(() ->
+                    onAppendEntriesResponse(peerPort, term, epoch, sentPrev, sentLast, sentNanos, resp, error)));
+        }
+    }
+
+    private void onAppendEntriesResponse(int peerPort, int term, int epoch, int prevIndex, int lastSent, long sentNanos,
+                                         AppendEntriesResponse resp, Throwable error) {
+        FollowerProgress fp = progress.get(peerPort);
+        if (fp == null || nodeState.getCurrentTerm() != term || nodeState.getRole() != NodeRole.LEADER) return;
+
+        /**Step down follower term if it has a higher term*/
+        if (resp != null && resp.getTerm() > nodeState.getCurrentTerm()) {
+            nodeState.stepDownToTerm(resp.getTerm());
+            stopLeading();
+            failPendingReads();
+            return;
         }
 
-        AppendEntries ae = new AppendEntries(nodeState.getCurrentTerm(),
-                "Leader" + selfPort,
-                prevIndex,
-                prevTerm,
-                entriesToSend,
-                leaderCommit);
+        /**Responses to requests sent before the last rewind only count towards matchIndex*/
+        boolean current = fp.epoch == epoch;
+        if (current) fp.inFlight--;
+
+        if (resp != null && resp.isSuccess()) {
+            /**The follower matches exactly what was sent; anything it holds beyond that is not verified yet*/
+            fp.matchIndex = Math.max(fp.matchIndex, lastSent);
+            if (current) fp.probing = false;
+            acknowledge(fp, sentNanos);
+            tryAdvanceCommitIndex();
+            if (peerPort == transferTarget) maybeSendTimeoutNow();
+        } else if (current) {
+            /**
+             * Everything sent after the failed request is discarded and resent from the rewound nextIndex.
+             * A rejection skips the follower's whole conflicting term, or goes straight to the end of a
+             * follower whose log is shorter; it always moves back at least one entry.
+             */
+            int rewindTo = fp.matchIndex + 1;
+            if (resp != null) {
+                int hinted = resp.getConflictIndex() > 0
+                        ? nodeState.nextIndexAfterConflict(resp.getConflictTerm(), resp.getConflictIndex())
+                        : prevIndex;
+                rewindTo = Math.max(rewindTo, Math.min(prevIndex, hinted));
+            } else {
+                System.out.println("[Leader] append to " + peerPort + " failed: " + error.getMessage());
+            }
+            fp.rewind(Math.max(1, rewindTo));
+        }
+        /**An unreachable follower is retried on the next tick rather than straight away*/
+        if (error == null) replicateToPeer(peerPort, false);
+    }
 
+    /**
+     * Streams the latest snapshot to a follower in chunks, one transfer per follower at a time. Runs on a thread of
+     * its own so the loop never waits for a chunk; what the responses change is handed back to the loop.
+     */
+    private void sendSnapshotToPeer(int peerPort) {
+        if (!snapshotTransfers.add(peerPort)) return;
+        boolean handedBack = false;
         try {
-            String respJson = MessageClient.sendMessage("localhost", peerPort, ae);
-            if (respJson == null) return;
+            Snapshot snapshot = nodeState.getLatestSnapshot();
+            int term = nodeState.getCurrentTerm();
+            if (snapshot == null) return;
 
-            AppendEntriesResponse resp = new Gson().fromJson(respJson, AppendEntriesResponse.class);
+            byte[] data = snapshot.getData();
+            int offset = 0;
+            System.out.println("[Leader] Sending snapshot up to index " + snapshot.getLastIncludedIndex() +
+                    " (" + data.length + " bytes) to " + peerPort);
+            do {
+                int length = Math.min(SNAPSHOT_CHUNK_BYTES, data.length - offset);
+                boolean done = offset + length == data.length;
+                InstallSnapshot chunk = new InstallSnapshot(term, "Leader" + selfPort,
+                        snapshot.getLastIncludedIndex(), snapshot.getLastIncludedTerm(), offset,
+                        Base64.getEncoder().encodeToString(Arrays.copyOfRange(data, offset, offset + length)), done);
 
-            synchronized (nodeState) {
-                /**Step down follower term if it has a higher term*/
-                if (resp.getTerm() > nodeState.getCurrentTerm()) {
-                    nodeState.setCurrentTerm(resp.getTerm());
-                    nodeState.setRole(NodeRole.FOLLOWER);
-                    stopLeaderScheduler();
+                InstallSnapshotResponse resp = MessageClient.await(MessageClient.installSnapshot("localhost", peerPort, groupId, chunk));
+                if (resp == null) return;
+
+                if (resp.getTerm() > term) {
+                    loop.execute(() -> {
+                        if (resp.getTerm() <= nodeState.getCurrentTerm()) return;
+                        nodeState.stepDownToTerm(resp.getTerm());
+                        stopLeading();
+                        failPendingReads();
+                    });
                     return;
                 }
+                if (!resp.isSuccess()) return;
+                offset += length;
+            } while (offset < data.length);
 
-                if (resp.isSuccess()) {
-                    int matched = resp.getMatchIndex();
-                    nextIndex.put(peerPort, matched + 1);
-                    matchIndex.put(peerPort, matched);
-                } else {
-                    int ni = Math.max(1, nextIndex.getOrDefault(peerPort, 1) - 1);
-                    nextIndex.put(peerPort, ni);
+            /**The transfer only ends once the follower's progress has moved past the snapshot, or it would start over*/
+            loop.execute(() -> {
+                FollowerProgress fp = progress.get(peerPort);
+                if (fp != null && nodeState.getCurrentTerm() == term) {
+                    fp.matchIndex = Math.max(fp.matchIndex, snapshot.getLastIncludedIndex());
+                    fp.rewind(snapshot.getLastIncludedIndex() + 1);
                 }
-
-                tryAdvanceCommitIndex();
-            }
+                snapshotTransfers.remove(peerPort);
+            });
+            handedBack = true;
         } catch (Exception e) {
-            System.out.println("[Leader] append to " + peerPort + " failed: " + e.getMessage());
+            System.out.println("[Leader] snapshot to " + peerPort + " failed: " + e.getMessage());
+        } finally {
+            if (!handedBack) snapshotTransfers.remove(peerPort);
         }
     }
 
+    /**
+     * The highest index stored on a majority is the quorum-th largest of the leader's synced index and the followers'
+     * matchIndex, so one pass over the peers finds it however many entries an ack covers. Only an entry of the
+     * current term is committed by counting replicas; earlier entries only ever have older terms, so there is
+     * nothing lower to fall back to.
+     */
     private void tryAdvanceCommitIndex() {
-        int lastIndex;
-        synchronized (nodeState) {
-            lastIndex = nodeState.getLastLogIndex();
+        int n = 0;
+        quorumMatch[n++] = localSyncedIndex;
+        for (int p : peerPorts) {
+            FollowerProgress fp = progress.get(p);
+            quorumMatch[n++] = fp != null ? fp.matchIndex : 0;
         }
+        Arrays.sort(quorumMatch);
         int majority = (peerPorts.size() + 1) / 2 + 1;
+        int quorumIndex = quorumMatch[quorumMatch.length - majority];
 
-        for (int N = lastIndex; N > nodeState.getCommitIndex(); N--) {
-            final int target = N;
-            int count = 1;
-            for (int p : peerPorts) {
-                int mk = matchIndex.getOrDefault(p, 0);
-                if (mk >= target) count++;
-            }
+        if (quorumIndex <= nodeState.getCommitIndex()) return;
+        if (nodeState.getTermAtIndex(quorumIndex) != nodeState.getCurrentTerm()) return;
+        System.out.println("[Leader] Advancing commitIndex to " + quorumIndex);
+        nodeState.setCommitIndex(quorumIndex);
+    }
 
-            if (count >= majority) {
-                int termAtN;
-                synchronized (nodeState) {
-                    termAtN = nodeState.getTermAtIndex(target);
-                }
-                if (termAtN == nodeState.getCurrentTerm()) {
-                    System.out.println("[Leader] Advancing commitIndex to " + target);
-                    nodeState.setCommitIndex(target);
-                    break;
-                }
-            }
+    private void stopLeading() {
+        leading = false;
+        if (transferTarget >= 0) {
+            long pausedMs = (System.nanoTime() - transferStartNanos) / 1_000_000;
+            System.out.println("[Leader] Stepped down for " + transferTarget + ", writes were paused for " + pausedMs + " ms");
+            CompletableFuture<Long> done = transferDone;
+            transferTarget = -1;
+            transferring = false;
+            transferDone = null;
+            nodeState.notifyAsync(() -> done.complete(pausedMs));
         }
     }
 
-    private void stopLeaderScheduler() {
-        if (leaderScheduler != null) {
-            leaderScheduler.shutdownNow();
-            leaderScheduler = null;
+    private static class PendingRead {
+        private final int index;
+        private final long arrivedNanos;
+        private final CompletableFuture<Integer> future;
+
+        PendingRead(int index, long arrivedNanos, CompletableFuture<Integer> future) {
+            this.index = index;
+            this.arrivedNanos = arrivedNanos;
+            this.future = future;
         }
     }
 
-    /** Called by the client to append a new command to the leader's log */
-    public void appendCommandAsLeader(String command) {
-        synchronized (nodeState) {
-            int term = nodeState.getCurrentTerm();
-            // prevLogIndex should be last log index; we append by passing prevLogIndex = lastIndex
-            nodeState.appendEntries(nodeState.getLastLogIndex(), Collections.singletonList(command), term);
+    /**Replication state of one follower, only touched on the loop*/
+    private static class FollowerProgress {
+        int nextIndex;
+        int matchIndex;
+        int inFlight;
+        long lastSentNanos;
+        /**Send time of the latest request the follower accepted in this term*/
+        long ackedSentNanos;
+        /**Bumped on every rewind so responses to requests sent before it can be told apart*/
+        int epoch;
+        /**True until the follower accepted an AppendEntries, a probe is sent one request at a time*/
+        boolean probing = true;
+
+        FollowerProgress(int nextIndex, long leaderSinceNanos) {
+            this.nextIndex = nextIndex;
+            this.lastSentNanos = System.nanoTime() - HEARTBEAT_INTERVAL_MS * 1_000_000;
+            this.ackedSentNanos = leaderSinceNanos - 1;
+        }
+
+        void rewind(int to) {
+            nextIndex = to;
+            inFlight = 0;
+            epoch++;
+            probing = true;
         }
-        // replication will happen on next heartbeat cycle
     }
 }
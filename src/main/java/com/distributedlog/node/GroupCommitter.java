@@ -0,0 +1,97 @@
+package com.distributedlog.node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Group commit stage for client writes on the leader.
+ * Concurrent commands queue up while the previous batch is being forced, then the whole queue is appended
+ * as one batch on the node loop and made durable with a single fsync by the SyncStage. Replication of the batch is
+ * kicked off before the local fsync so both overlap. Every caller's future completes with the log index of its command once a majority,
+ * the leader's own fsync included, holds it.
+ */
+public class GroupCommitter implements Runnable {
+    private static final int MAX_BATCH = Integer.getInteger("distributedlog.groupCommit.maxBatch", 4096);
+
+    private final NodeState nodeState;
+    private final ElectionManager electionManager;
+    private final BlockingQueue<PendingCommand> queue = new LinkedBlockingQueue<>();
+
+    public GroupCommitter(NodeState nodeState, ElectionManager electionManager) {
+        this.nodeState = nodeState;
+        this.electionManager = electionManager;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "group-commit-" + nodeState.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**Queues a command for the next batch; the future holds its log index once it is committed*/
+    public CompletableFuture<Integer> submit(String command) {
+        PendingCommand pending = new PendingCommand(command);
+        queue.add(pending);
+        return pending.future;
+    }
+
+    @Override
+    public void run() {
+        List<PendingCommand> batch = new ArrayList<>();
+        List<String> commands = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                commitBatch(batch, commands);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                for (PendingCommand pending : batch) pending.future.completeExceptionally(e);
+            } finally {
+                batch.clear();
+                commands.clear();
+            }
+        }
+    }
+
+    private void commitBatch(List<PendingCommand> batch, List<String> commands) {
+        for (PendingCommand pending : batch) commands.add(pending.command);
+
+        CompletableFuture<Integer> durable = nodeState.getLoop().call(() -> {
+            if (nodeState.getRole() != NodeRole.LEADER) {
+                throw new IllegalStateException("This node is not the leader");
+            }
+            if (electionManager.isTransferringLeadership()) {
+                throw new IllegalStateException("Leadership transfer in progress, retry shortly");
+            }
+            int lastIndex = nodeState.appendAsLeader(commands);
+            int index = lastIndex - batch.size() + 1;
+            for (PendingCommand pending : batch) {
+                nodeState.awaitCommit(index++, pending.future);
+            }
+            return nodeState.persist().thenApply(synced -> lastIndex);
+        });
+        electionManager.replicate();
+
+        /**One fsync for the whole batch; the next batch queues up meanwhile, the loop does not wait for it*/
+        int lastIndex = durable.join();
+        electionManager.onLocalSync(lastIndex);
+
+        System.out.println("[GroupCommit] " + nodeState.getNodeId() + " flushed " + batch.size() +
+                " command(s) up to index " + lastIndex);
+    }
+
+    private static class PendingCommand {
+        private final String command;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        PendingCommand(String command) {
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.distributedlog.node;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory part of the log, addressed by position (0 is the first entry held in memory, NodeState maps indexes to it).
+ * Entries are not objects: the term, payload location and running byte count of each live in parallel primitive
+ * arrays, and the UTF-8 payloads are packed back to back into large byte[] chunks. Dropping a prefix only moves the
+ * head and releases whole chunks; cutting a suffix only moves the end. Neither touches the entries themselves.
+ * Only ever used on the NodeLoop thread, which owns NodeState, so it takes no lock.
+ */
+final class LogBuffer {
+    private static final int CHUNK_BYTES = Integer.getInteger("distributedlog.log.chunkBytes", 1024 * 1024);
+    /**Bookkeeping bytes held per entry besides its payload, counted by retainedBytes()*/
+    private static final int ENTRY_OVERHEAD = 4 + 4 + 4 + 8;
+
+    private int[] terms = new int[1024];
+    private int[] chunkIds = new int[1024];
+    private int[] offsets = new int[1024];
+    /**Payload bytes appended before each entry, a length is the difference to the next entry's start (or to end)*/
+    private long[] starts = new long[1024];
+    /**Array slot of position 0*/
+    private int head;
+    private int size;
+    private long end;
+
+    /**Chunks still referenced by retained entries; chunks.get(0) has id firstChunkId*/
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int firstChunkId;
+    private int writeOffset;
+    /**Set after a truncation so the next append opens a fresh chunk instead of overwriting bytes a LogSlice may see*/
+    private boolean sealed = true;
+
+    int size() {
+        return size;
+    }
+
+    int term(int pos) {
+        return terms[head + pos];
+    }
+
+    void append(int term, String command) {
+        if (command == null) command = "";
+        byte[] encoded = null;
+        int length = command.length();
+        for (int i = 0; i < command.length(); i++) {
+            if (command.charAt(i) >= 0x80) {
+                encoded = command.getBytes(StandardCharsets.UTF_8);
+                length = encoded.length;
+                break;
+            }
+        }
+
+        byte[] chunk = chunkFor(length);
+        if (encoded != null) {
+            System.arraycopy(encoded, 0, chunk, writeOffset, length);
+        } else {
+            /**Plain ASCII, the usual case, is copied without an intermediate array*/
+            for (int i = 0; i < length; i++) chunk[writeOffset + i] = (byte) command.charAt(i);
+        }
+
+        ensureCapacity();
+        int slot = head + size;
+        terms[slot] = term;
+        chunkIds[slot] = firstChunkId + chunks.size() - 1;
+        offsets[slot] = writeOffset;
+        starts[slot] = end;
+        end += length;
+        writeOffset += length;
+        size++;
+    }
+
+    /**Keeps the first keep entries*/
+    void truncate(int keep) {
+        if (keep >= size) return;
+        end = starts[head + keep];
+        size = keep;
+        /**Chunks after the one holding the last kept entry only hold removed entries*/
+        int lastKeptChunk = keep > 0 ? chunkIds[head + keep - 1] : firstChunkId - 1;
+        while (firstChunkId + chunks.size() - 1 > lastKeptChunk) chunks.remove(chunks.size() - 1);
+        sealed = true;
+    }
+
+    /**Drops the first count entries and the chunks only they used*/
+    void dropFirst(int count) {
+        if (count >= size) {
+            clear();
+            return;
+        }
+        head += count;
+        size -= count;
+        while (firstChunkId < chunkIds[head]) {
+            chunks.remove(0);
+            firstChunkId++;
+        }
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+        firstChunkId += chunks.size();
+        chunks.clear();
+        sealed = true;
+    }
+
+    /**Payload plus bookkeeping bytes held by the retained entries*/
+    long retainedBytes() {
+        return size == 0 ? 0 : end - starts[head] + (long) ENTRY_OVERHEAD * size;
+    }
+
+    /**Number of leading entries to drop so that at most maxBytes stay retained*/
+    int countToFit(long maxBytes) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (end - starts[head + mid] + (long) ENTRY_OVERHEAD * (size - mid) <= maxBytes) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**View of positions [from, to), sharing the payload chunks*/
+    LogSlice slice(int from, int to) {
+        int count = Math.max(0, to - from);
+        byte[][] sliceChunks = new byte[count][];
+        int[] sliceOffsets = new int[count];
+        int[] sliceLengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            int slot = head + from + i;
+            sliceChunks[i] = chunk(slot);
+            sliceOffsets[i] = offsets[slot];
+            sliceLengths[i] = length(slot);
+        }
+        return new LogSlice(sliceChunks, sliceOffsets, sliceLengths, terms(from, to));
+    }
+
+    /**Terms of positions [from, to)*/
+    int[] terms(int from, int to) {
+        return Arrays.copyOfRange(terms, head + from, head + Math.max(from, to));
+    }
+
+    private byte[] chunk(int slot) {
+        return chunks.get(chunkIds[slot] - firstChunkId);
+    }
+
+    private int length(int slot) {
+        long next = slot + 1 < head + size ? starts[slot + 1] : end;
+        return (int) (next - starts[slot]);
+    }
+
+    /**The chunk the next payload of length bytes goes to, a new one when the current is sealed or full*/
+    private byte[] chunkFor(int length) {
+        if (!sealed && !chunks.isEmpty()) {
+            byte[] current = chunks.get(chunks.size() - 1);
+            if (writeOffset + length <= current.length) return current;
+        }
+        byte[] chunk = new byte[Math.max(CHUNK_BYTES, length)];
+        chunks.add(chunk);
+        writeOffset = 0;
+        sealed = false;
+        return chunk;
+    }
+
+    /**Makes room for one more entry, sliding the live range back to slot 0 before growing the arrays*/
+    private void ensureCapacity() {
+        if (head + size < terms.length) return;
+        int capacity = size < terms.length / 2 ? terms.length : terms.length * 2;
+        terms = moved(terms, capacity);
+        chunkIds = moved(chunkIds, capacity);
+        offsets = moved(offsets, capacity);
+        long[] movedStarts = capacity == starts.length ? starts : new long[capacity];
+        System.arraycopy(starts, head, movedStarts, 0, size);
+        starts = movedStarts;
+        head = 0;
+    }
+
+    private int[] moved(int[] array, int capacity) {
+        int[] out = capacity == array.length ? array : new int[capacity];
+        System.arraycopy(array, head, out, 0, size);
+        return out;
+    }
+}
@@ -3,6 +3,9 @@ package com.distributedlog.node;
 /** A simple log entry that stores the term and command and we don't store explicit index here because NodeState treats log index as position (1-based).
  */
 public class LogEntry {
+    /**Command of the entry a new leader appends to commit something from its own term, never applied*/
+    public static final String NOOP = "";
+
     private final int term;
     private final String command;
 
@@ -0,0 +1,78 @@
+package com.distributedlog.node;
+
+import com.distributedlog.messages.CommandBytes;
+import com.distributedlog.storage.LogRange;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Read-only view of a range of log entries. For a LogBuffer range it points at the buffer's payload chunks instead
+ * of copying them; chunks are never written again once an entry is in them, so the view stays valid after the log
+ * moves on. A range read back from the WAL points into the single array the records were copied to.
+ */
+final class LogSlice extends AbstractList<String> implements CommandBytes, RandomAccess {
+    private final byte[][] chunks;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] terms;
+
+    LogSlice(byte[][] chunks, int[] offsets, int[] lengths, int[] terms) {
+        this.chunks = chunks;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.terms = terms;
+    }
+
+    static LogSlice of(LogRange range) {
+        int count = range.size();
+        byte[][] chunks = new byte[count][];
+        Arrays.fill(chunks, range.getData());
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        int[] terms = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = range.getOffset(i);
+            lengths[i] = range.getLength(i);
+            terms[i] = range.getTerm(i);
+        }
+        return new LogSlice(chunks, offsets, lengths, terms);
+    }
+
+    @Override
+    public String get(int i) {
+        return new String(chunks[i], offsets[i], lengths[i], StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return lengths.length;
+    }
+
+    @Override
+    public int byteLength(int i) {
+        return lengths[i];
+    }
+
+    @Override
+    public void writeTo(int i, ByteBuffer out) {
+        out.put(chunks[i], offsets[i], lengths[i]);
+    }
+
+    int term(int i) {
+        return terms[i];
+    }
+
+    /**Terms of all entries, in order*/
+    int[] terms() {
+        return terms;
+    }
+
+    /**A copy of the bytes of command i*/
+    byte[] bytes(int i) {
+        return Arrays.copyOfRange(chunks[i], offsets[i], offsets[i] + lengths[i]);
+    }
+}
@@ -0,0 +1,133 @@
+package com.distributedlog.node;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The thread that owns a node's consensus state. RPC handlers, election and heartbeat ticks, replication responses and
+ * client appends are queued here as tasks and run one at a time in arrival order, so NodeState and the leader's
+ * replication state need no lock and a given sequence of events always leaves them the same way.
+ * The queue is a lock-free linked queue that any thread may add to; only the loop takes from it, and it parks
+ * when there is nothing to do. Disk forces and network sends are not done here, see SyncStage and MessageClient.
+ */
+public final class NodeLoop implements Runnable {
+    /**How often the loop reports its load, 0 turns the report off*/
+    private static final long STATS_INTERVAL_MS = Long.getLong("distributedlog.loop.statsMs", 10000);
+
+    private final String name;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    /**Set while the loop is parked or about to park, producers only unpark it then*/
+    private volatile boolean idle;
+    /**Run each time the queue runs dry, before parking*/
+    private volatile Runnable idleTask;
+
+    /**Load figures, the depth is counted by the producers, the rest only by the loop*/
+    private final AtomicInteger depth = new AtomicInteger();
+    private int maxDepth;
+    private long taskCount;
+    private long busyNanos;
+    private long maxTaskNanos;
+    private long statsSinceNanos = System.nanoTime();
+
+    public NodeLoop(String name) {
+        this.name = name;
+        this.thread = new Thread(this, "loop-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    void setIdleTask(Runnable idleTask) {
+        this.idleTask = idleTask;
+    }
+
+    /**Queues a task for the loop, callable from any thread*/
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        depth.incrementAndGet();
+        if (idle) LockSupport.unpark(thread);
+    }
+
+    /**Runs task on the loop and completes with its result, or with the exception it threw*/
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                future.complete(task.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**Runs task on the loop and waits for it; on the loop itself it simply runs it. Never call it holding a lock the loop takes*/
+    public <T> T call(Supplier<T> task) {
+        if (inLoop()) return task.get();
+        try {
+            return submit(task).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                Runnable onIdle = idleTask;
+                if (onIdle != null) runTask(onIdle);
+                /**A producer that saw idle unset queued before the isEmpty check below, so nothing is slept through*/
+                idle = true;
+                if (tasks.isEmpty()) LockSupport.park(this);
+                idle = false;
+                continue;
+            }
+
+            int queued = depth.getAndDecrement();
+            if (queued > maxDepth) maxDepth = queued;
+            runTask(task);
+        }
+    }
+
+    private void runTask(Runnable task) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            /**One failed event must not stop the node, the state it left is the same on a retry*/
+            e.printStackTrace();
+        }
+        long end = System.nanoTime();
+        long took = end - start;
+        taskCount++;
+        busyNanos += took;
+        if (took > maxTaskNanos) maxTaskNanos = took;
+        if (STATS_INTERVAL_MS > 0 && end - statsSinceNanos >= STATS_INTERVAL_MS * 1_000_000) reportStats(end);
+    }
+
+    private void reportStats(long now) {
+        long elapsed = now - statsSinceNanos;
+        System.out.println("[Loop] " + name + " ran " + taskCount + " tasks in " + elapsed / 1_000_000 + " ms, busy " +
+                String.format("%.1f", 100.0 * busyNanos / elapsed) + "%, longest " + maxTaskNanos / 1000 +
+                " us, deepest queue " + maxDepth);
+        taskCount = 0;
+        busyNanos = 0;
+        maxTaskNanos = 0;
+        maxDepth = 0;
+        statsSinceNanos = now;
+    }
+}
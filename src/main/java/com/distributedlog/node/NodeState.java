@@ -1,297 +1,875 @@
 package com.distributedlog.node;
 
 import com.distributedlog.messages.AppendEntries;
+import com.distributedlog.messages.InstallSnapshot;
+import com.distributedlog.statemachine.KeyValueStateMachine;
+import com.distributedlog.statemachine.StateMachine;
+import com.distributedlog.storage.HardStateStore;
+import com.distributedlog.storage.LogStore;
+import com.distributedlog.storage.SegmentedLogStore;
+import com.distributedlog.storage.SnapshotStore;
+import com.distributedlog.storage.SnapshotStore.Snapshot;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * NodeState keeps currentTerm, votedFor, role, and a local log.
- * Log uses 1-based indexing semantics: first entry has index 1; log.size() is last index.
- * Also tracks leader replication state (nextIndex, matchIndex) for log replication.
+ * Log uses 1-based indexing semantics: first entry has index 1. Once a snapshot exists the log only holds the entries
+ * after lastIncludedIndex. Memory only holds the most recent of them, from logStartIndex on, so index i lives at
+ * position i - logStartIndex of the LogBuffer; older entries are read back from the WAL when they are asked for.
+ * The leader's per-follower replication state (nextIndex, matchIndex) lives in ElectionManager.
  *
  * Now includes persistence support and leader tracking for client redirection.
+ * Log entries are persisted through an append-only LogStore, currentTerm and votedFor through a small
+ * separate hard-state file. Role and leaderId are volatile and rebuilt from heartbeats after a restart.
+ *
+ * The state belongs to the node's NodeLoop: everything except the methods documented otherwise is only called from
+ * that thread, so nothing here takes a lock. The fields other threads may read (term, role, leader, the latest
+ * snapshot) are volatile. Changes are written to the WAL and the hard state in memory first, persist() hands them to
+ * the SyncStage and completes once they are durable.
  */
 public class NodeState {
     private final String nodeId;       /**Unique ID of a node*/
-    private int currentTerm = 0;
+    /**Raft group this state belongs to, a host runs one NodeState per group*/
+    private final int groupId;
+    /**Names the storage directory and threads: the node id, followed by the group for groups other than 0*/
+    private final String name;
+    private volatile int currentTerm = 0;
     private String votedFor = null;
-    private NodeRole role = NodeRole.FOLLOWER;
+    private volatile NodeRole role = NodeRole.FOLLOWER;
 
     /**Leader tracking*/
-    private String leaderId = null;
+    private volatile String leaderId = null;
+    /**When the current leader was last heard from, bounds how stale a follower read can be*/
+    private volatile long lastLeaderContactNanos = System.nanoTime() - Long.MAX_VALUE / 2;
 
     /**Log and replication state*/
-    private final List<LogEntry> log = new ArrayList<>();
+    private final LogBuffer log = new LogBuffer();
+    /**Index of the first entry held in the LogBuffer, the entries between lastIncludedIndex and it are only in the WAL*/
+    private int logStartIndex = 1;
+    private static final long LOG_CACHE_BYTES = Long.getLong("distributedlog.log.cacheBytes", 32L * 1024 * 1024);
+    /**Entries read from the WAL at a time when the log is dumped*/
+    private static final int LOAD_BATCH = 4096;
     private int commitIndex = 0;
-    private int lastApplied = 0;
-
-    /**Leader replication track*/
-    private final Map<String, Integer> nextIndex = new HashMap<>();
-    private final Map<String, Integer> matchIndex = new HashMap<>();
+    /**Written only under applyLock, read without it*/
+    private volatile int lastApplied = 0;
+
+    /**Snapshot and compaction, the log prefix up to lastIncludedIndex has been discarded*/
+    private static final int SNAPSHOT_ENTRIES = Integer.getInteger("distributedlog.snapshot.entries", 10000);
+    private static final long SNAPSHOT_LOG_BYTES = Long.getLong("distributedlog.snapshot.logBytes", 64L * 1024 * 1024);
+    private int lastIncludedIndex = 0;
+    private int lastIncludedTerm = 0;
+    private volatile Snapshot latestSnapshot;
+
+    /**Snapshot being received from the leader chunk by chunk*/
+    private ByteArrayOutputStream pendingSnapshot;
+    private int pendingSnapshotIndex;
+    private int pendingSnapshotTerm;
+
+    /**Client writes waiting for their index to commit, in index order; only a leader has any*/
+    private final ArrayDeque<CommitWaiter> commitWaiters = new ArrayDeque<>();
+    /**Completes commit and apply waiters off the loop and the apply lock, so their callbacks never run on either*/
+    private final ExecutorService commitNotifier;
+
+    /**Committed commands are applied here, snapshots capture its state*/
+    private final StateMachine stateMachine;
+    /**
+     * Guards the state machine, lastApplied and applyWaiters. The loop may take it (installing a snapshot), but no
+     * thread holding it ever waits for the loop, so a slow state machine holds up the apply thread and reads but not
+     * RPCs or replication.
+     */
+    private final Object applyLock = new Object();
+    private static final int MAX_APPLY_BATCH = Integer.getInteger("distributedlog.apply.maxBatch", 4096);
+    /**Reads waiting for lastApplied to reach their index, smallest index first*/
+    private final PriorityQueue<ApplyWaiter> applyWaiters = new PriorityQueue<>(Comparator.comparingInt(w -> w.index));
+    /**Applies committed entries to the state machine, off the loop*/
+    private final Thread applier;
+    /**Run by the applier between batches: snapshot files are written and forced there rather than on the loop*/
+    private final ConcurrentLinkedQueue<Runnable> applierTasks = new ConcurrentLinkedQueue<>();
 
     /**Persistence*/
     private final File storageDir;
+    private final LogStore logStore;
+    private final HardStateStore hardStateStore;
+    private final SnapshotStore snapshotStore;
+
+    /**Thread that owns this state, and the stage that makes its changes durable*/
+    private final NodeLoop loop;
+    private final SyncStage.Target syncTarget;
+    /**The WAL or the hard state changed since the last persist()*/
+    private boolean unsynced;
+    private boolean hardStateChanged;
+    /**Completes once everything handed to the SyncStage so far is durable*/
+    private CompletableFuture<Void> lastPersist = CompletableFuture.completedFuture(null);
+
+    /**Last log index already written to manual_log.txt, only touched by the applier once it runs*/
+    private int manualLogIndex;
 
     public NodeState(String nodeId) {
+        this(nodeId, new KeyValueStateMachine());
+    }
+
+    public NodeState(String nodeId, StateMachine stateMachine) {
+        this(nodeId, 0, stateMachine, null);
+    }
+
+    /**State of one group on a host; syncStage is the host's shared disk stage, null to give this state its own*/
+    NodeState(String nodeId, int groupId, StateMachine stateMachine, SyncStage syncStage) {
         this.nodeId = nodeId;
+        this.groupId = groupId;
+        this.name = groupId == 0 ? nodeId : nodeId + "-g" + groupId;
+        this.stateMachine = stateMachine;
 
-        /
-        this.storageDir = new File("data/" + nodeId);
+        long startNanos = System.nanoTime();
+        this.storageDir = new File("data/" + name);
         if (!storageDir.exists()) storageDir.mkdirs();
 
-        loadState();
+        try {
+            this.logStore = new SegmentedLogStore(new File(storageDir, "wal"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the write-ahead log for " + name, e);
+        }
+        this.hardStateStore = new HardStateStore(storageDir);
+        this.snapshotStore = new SnapshotStore(storageDir);
+        this.commitNotifier = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "commit-notify-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+
+        loadState(startNanos);
+
+        if (syncStage == null) {
+            syncStage = new SyncStage(name);
+            syncStage.start();
+        }
+        this.syncTarget = syncStage.attach(name, logStore, hardStateStore);
+        this.loop = new NodeLoop(name);
+        this.loop.setIdleTask(() -> {
+            /**Whatever no response asked to be made durable yet, once per burst of events*/
+            persist();
+        });
+        this.loop.start();
+
+        this.applier = new Thread(this::applyLoop, "apply-" + name);
+        this.applier.setDaemon(true);
+        this.applier.start();
     }
 
-    public synchronized String getNodeId() {
+    public String getNodeId() {
         return nodeId;
     }
 
-    public synchronized int getCurrentTerm() { return currentTerm; }
-    public synchronized void setCurrentTerm(int term) {
+    public int getGroupId() {
+        return groupId;
+    }
+
+    /**nodeId for group 0, nodeId-gN otherwise; used in thread names and logs*/
+    public String getName() {
+        return name;
+    }
+
+    public NodeLoop getLoop() {
+        return loop;
+    }
+
+    /**Any thread*/
+    public int getCurrentTerm() { return currentTerm; }
+    public void setCurrentTerm(int term) {
+        if (term == currentTerm) return;
         this.currentTerm = term;
-        saveState();
+        saveHardState();
     }
-    public synchronized void incrementTerm() {
+    public void incrementTerm() {
         this.currentTerm++;
-        saveState();
+        saveHardState();
     }
-    public synchronized String getVotedFor() { return votedFor; }
-    public synchronized void setVotedFor(String votedFor) {
+    public String getVotedFor() { return votedFor; }
+    public void setVotedFor(String votedFor) {
+        if (Objects.equals(this.votedFor, votedFor)) return;
         this.votedFor = votedFor;
-        saveState();
+        saveHardState();
+    }
+
+    /**Moves to a newer term as a follower with no vote cast, costing a single hard-state write*/
+    public void stepDownToTerm(int term) {
+        this.currentTerm = term;
+        this.votedFor = null;
+        this.role = NodeRole.FOLLOWER;
+        /**The leader of the new term is not known yet, clients are not sent back to the old one*/
+        this.leaderId = null;
+        saveHardState();
+        failCommitWaiters();
+    }
+
+    /**Starts a new term voting for the given candidate, costing a single hard-state write*/
+    public void incrementTermAndVote(String candidateId) {
+        this.currentTerm++;
+        this.votedFor = candidateId;
+        saveHardState();
     }
-    public synchronized NodeRole getRole() { return role; }
-    public synchronized void setRole(NodeRole role) {
+
+    /**Any thread*/
+    public NodeRole getRole() { return role; }
+    public void setRole(NodeRole role) {
         this.role = role;
         //if this node is now leader, set leaderid to self
         if (role == NodeRole.LEADER) {
         this.leaderId = this.nodeId;
+        } else {
+            failCommitWaiters();
         }
-        saveState();
     }
 
-    public synchronized String getLeaderId() {
+    /**Any thread*/
+    public String getLeaderId() {
         return leaderId;
     }
-    public synchronized void setLeaderId(String leaderId) {
+
+    /**Port of the known leader, ids carry it (Leader5001, Node5001); -1 when no leader is known. Any thread*/
+    public int getLeaderPort() {
+        String leaderId = this.leaderId;
+        if (leaderId == null) return -1;
+        String digits = leaderId.replaceAll("\\D+", "");
+        return digits.isEmpty() ? -1 : Integer.parseInt(digits);
+    }
+
+    /**Called for every request accepted from the current leader*/
+    public void markLeaderContact() {
+        lastLeaderContactNanos = System.nanoTime();
+    }
+
+    /**Milliseconds since the leader was last heard from, 0 on the leader itself, see ElectionManager.getQuorumContactAgeMs. Any thread*/
+    public long getLeaderContactAgeMs() {
+        if (role == NodeRole.LEADER) return 0;
+        return (System.nanoTime() - lastLeaderContactNanos) / 1_000_000;
+    }
+    public void setLeaderId(String leaderId) {
         this.leaderId = leaderId;
     }
 
-    public synchronized int getLastLogIndex() { return log.size(); }
-    public synchronized int getLastLogTerm() { return log.isEmpty() ? 0 : log.get(log.size() - 1).getTerm(); }
+    public int getLastLogIndex() { return logStartIndex + log.size() - 1; }
+    public int getLastLogTerm() { return getTermAtIndex(getLastLogIndex()); }
+
+    public int getLastIncludedIndex() { return lastIncludedIndex; }
+    public int getLastIncludedTerm() { return lastIncludedTerm; }
+    /**Any thread*/
+    public Snapshot getLatestSnapshot() { return latestSnapshot; }
 
-    public synchronized int getTermAtIndex(int index) {
-        if (index <= 0 || index > log.size()) return 0;
-        return log.get(index - 1).getTerm();
+    /**Term of the entry at index; 0 when the index is past the end or already compacted into the snapshot*/
+    public int getTermAtIndex(int index) {
+        if (index == lastIncludedIndex) return lastIncludedTerm;
+        if (index <= lastIncludedIndex || index > getLastLogIndex()) return 0;
+        if (index >= logStartIndex) return log.term(pos(index));
+        try {
+            return logStore.getTerm(index);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the log of " + name, e);
+        }
     }
 
-    public synchronized List<String> getCommandsFromTo(int startIndex, int endIndex) {
-        List<String> out = new ArrayList<>();
-        if (startIndex <= 0) startIndex = 1;
-        if (endIndex > log.size()) endIndex = log.size();
-        for (int i = startIndex; i <= endIndex; i++) {
-            out.add(log.get(i - 1).getCommand());
+    /**The commands as a view over the log's own buffers, the binary codec sends their bytes without copying them*/
+    public List<String> getCommandsFromTo(int startIndex, int endIndex) {
+        return getEntriesFromTo(startIndex, endIndex);
+    }
+
+    public int[] getTermsFromTo(int startIndex, int endIndex) {
+        return getEntriesFromTo(startIndex, endIndex).terms();
+    }
+
+    /**
+     * Commands and terms of startIndex..endIndex. A range that starts before the in-memory part of the log is read
+     * from the WAL in one go, which serves a follower catching up from far behind without loading the log back.
+     */
+    LogSlice getEntriesFromTo(int startIndex, int endIndex) {
+        if (startIndex <= lastIncludedIndex) startIndex = lastIncludedIndex + 1;
+        if (endIndex > getLastLogIndex()) endIndex = getLastLogIndex();
+        if (endIndex < startIndex) return log.slice(0, 0);
+        if (startIndex >= logStartIndex) return log.slice(pos(startIndex), pos(endIndex) + 1);
+        try {
+            return LogSlice.of(logStore.read(startIndex, endIndex));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the log of " + name, e);
         }
-        return out;
+    }
+
+    /**
+     * First index at or before upTo whose term is term, searched over the retained log. Terms never decrease along
+     * the log, so a binary search finds it, reading only a handful of terms even for a long term.
+     */
+    public int getFirstIndexOfTerm(int term, int upTo) {
+        int lo = lastIncludedIndex + 1;
+        int hi = Math.min(upTo, getLastLogIndex());
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getTermAtIndex(mid) >= term) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**Last index whose term is term, lastIncludedIndex when only the snapshot has it, 0 when the log has none*/
+    public int getLastIndexOfTerm(int term) {
+        int lo = lastIncludedIndex;
+        int hi = getLastLogIndex();
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (getTermAtIndex(mid) <= term) lo = mid;
+            else hi = mid - 1;
+        }
+        return getTermAtIndex(lo) == term ? lo : 0;
+    }
+
+    /**
+     * Where the leader resumes after a follower rejected AppendEntries with the given hint. If the leader has
+     * entries of conflictTerm, the follower's entries of that term match up to the leader's last one; otherwise
+     * the follower's whole conflictTerm run is wrong and is skipped.
+     */
+    public int nextIndexAfterConflict(int conflictTerm, int conflictIndex) {
+        if (conflictTerm == 0) return conflictIndex;
+        int last = getLastIndexOfTerm(conflictTerm);
+        return last > 0 ? last + 1 : conflictIndex;
+    }
+
+    /**Position of index in the LogBuffer*/
+    private int pos(int index) {
+        return index - logStartIndex;
     }
 
     /**AppendEntries for followers with the consistency check*/
-    public synchronized boolean appendEntriesWithConsistency(AppendEntries ae) {
+    public boolean appendEntriesWithConsistency(AppendEntries ae) {
         int prevLogIndex = ae.getPrevLogIndex();
         int prevLogTerm = ae.getPrevLogTerm();
 
-        /**Detects comflicts*/
-        if (prevLogIndex > 0 && getTermAtIndex(prevLogIndex) != prevLogTerm) {
+        /**Detects comflicts, entries covered by the snapshot are committed and therefore always match*/
+        if (prevLogIndex > getLastLogIndex()) {
+            return false;
+        }
+        if (prevLogIndex >= lastIncludedIndex && prevLogIndex > 0 && getTermAtIndex(prevLogIndex) != prevLogTerm) {
             return false;
         }
 
         /**Append and overwrite the entries*/
-        appendEntries(prevLogIndex, ae.getEntries(), ae.getTerm());
+        int lastNewIndex = appendEntries(prevLogIndex, ae.getEntries(), ae.getEntryTerms(), ae.getTerm());
 
-        /**Commit index updated*/
-        setCommitIndex(ae.getLeaderCommit());
-
-        saveLog();
+        /**Commit index updated, never past what this request verified*/
+        setCommitIndex(Math.min(ae.getLeaderCommit(), lastNewIndex));
         return true;
     }
 
-    public synchronized void appendEntries(int prevLogIndex, List<String> entries, int termOfEntry) {
-        int currentSize = log.size();
-        int expectedNextIndex = prevLogIndex + 1;
+    public void appendEntries(int prevLogIndex, List<String> entries, int termOfEntry) {
+        appendEntries(prevLogIndex, entries, null, termOfEntry);
+    }
 
-        /**Remove the conflicting entries*/
-        if (expectedNextIndex <= currentSize) {
-            for (int i = currentSize; i >= expectedNextIndex; i--) {
-                log.remove(i - 1);
-            }
+    /**
+     * Merges entries into the log after prevLogIndex. Entries that are already present with the same term are kept,
+     * the log is only cut at the first real conflict. Returns the index of the last entry of the request.
+     * The entries are written to the WAL but not forced, persist() does that.
+     */
+    public int appendEntries(int prevLogIndex, List<String> entries, int[] entryTerms, int defaultTerm) {
+        int count = entries == null ? 0 : entries.size();
+        int lastIndex = getLastLogIndex();
+
+        /**Skip what is covered by the snapshot or already matches*/
+        int k = 0;
+        while (k < count) {
+            int index = prevLogIndex + 1 + k;
+            if (index > lastIndex) break;
+            if (index > lastIncludedIndex && getTermAtIndex(index) != termOf(entryTerms, k, defaultTerm)) break;
+            k++;
+        }
+        if (k == count) return prevLogIndex + count;
+
+        int firstNewIndex = prevLogIndex + 1 + k;
+        List<LogEntry> newEntries = new ArrayList<>(count - k);
+        for (int i = k; i < count; i++) {
+            newEntries.add(new LogEntry(termOf(entryTerms, i, defaultTerm), entries.get(i)));
         }
 
-        /**Append the new entries*/
-        if (entries != null) {
-            for (String cmd : entries) {
-                log.add(new LogEntry(termOfEntry, cmd));
+        try {
+            /**Remove the conflicting entries, this only touches the tail of the WAL*/
+            if (firstNewIndex <= lastIndex) {
+                logStore.truncateSuffix(firstNewIndex);
+                if (firstNewIndex >= logStartIndex) {
+                    log.truncate(pos(firstNewIndex));
+                } else {
+                    log.clear();
+                    logStartIndex = firstNewIndex;
+                }
             }
+
+            /**Append the new entries*/
+            logStore.append(newEntries);
+            unsynced = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the log of " + name, e);
         }
+        addToLog(newEntries);
+        return prevLogIndex + count;
+    }
 
-        saveState();
+    private static int termOf(int[] entryTerms, int k, int defaultTerm) {
+        return entryTerms != null && k < entryTerms.length ? entryTerms[k] : defaultTerm;
     }
 
-    public synchronized int getCommitIndex() { return commitIndex; }
-    public synchronized void setCommitIndex(int newCommitIndex) {
-        if (newCommitIndex > commitIndex) {
-            commitIndex = Math.min(newCommitIndex, log.size());
-            applyCommittedEntries();
-            saveState();
+    private void addToLog(List<LogEntry> newEntries) {
+        for (LogEntry e : newEntries) log.append(e.getTerm(), e.getCommand());
+        trimLogCache();
+    }
+
+    /**Keeps the in-memory part of the log under LOG_CACHE_BYTES; everything in it is already in the WAL*/
+    private void trimLogCache() {
+        if (log.retainedBytes() <= LOG_CACHE_BYTES) return;
+        /**Down to three quarters, so the next appends do not trim again right away*/
+        int drop = log.countToFit(LOG_CACHE_BYTES / 4 * 3);
+        log.dropFirst(drop);
+        logStartIndex += drop;
+    }
+
+    /**
+     * Leader side append used by group commit: writes the batch to the WAL without forcing it,
+     * the caller makes it durable with persist(). Returns the index of the last entry.
+     */
+    public int appendAsLeader(List<String> commands) {
+        List<LogEntry> newEntries = new ArrayList<>(commands.size());
+        for (String cmd : commands) {
+            newEntries.add(new LogEntry(currentTerm, cmd));
+        }
+        try {
+            logStore.append(newEntries);
+            unsynced = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the log of " + name, e);
         }
+        addToLog(newEntries);
+        return getLastLogIndex();
     }
 
-    private void applyCommittedEntries() {
-        while (lastApplied < commitIndex) {
-            lastApplied++;
-            LogEntry e = log.get(lastApplied - 1);
-            System.out.println("[StateMachine] Applying log index " + lastApplied + " -> " + e.getCommand());
+    /**
+     * Completes once every change made so far, log entries as well as term and vote, is on disk. Anything relying on
+     * them waits for it: RPC responses, vote requests and the leader's own commit vote. Calls with nothing new in
+     * between share the same flush; after a failed one the next call tries again.
+     */
+    public CompletableFuture<Void> persist() {
+        if (unsynced || hardStateChanged || lastPersist.isCompletedExceptionally()) {
+            lastPersist = syncTarget.flush(hardStateChanged ? new HardStateStore.HardState(currentTerm, votedFor) : null);
+            unsynced = false;
+            hardStateChanged = false;
         }
+        return lastPersist;
     }
 
-    public synchronized void initLeaderState(List<String> allNodeIds) {
-        int next = getLastLogIndex() + 1;
-        nextIndex.clear();
-        matchIndex.clear();
-        for (String nodeId : allNodeIds) {
-            nextIndex.put(nodeId, next);
-            matchIndex.put(nodeId, 0);
+    public int getCommitIndex() { return commitIndex; }
+    public void setCommitIndex(int newCommitIndex) {
+        if (newCommitIndex > commitIndex) {
+            commitIndex = Math.min(newCommitIndex, getLastLogIndex());
+            releaseCommitWaiters();
+            LockSupport.unpark(applier);
         }
     }
 
-    public synchronized int getNextIndex(String nodeId) {
-        return nextIndex.getOrDefault(nodeId, getLastLogIndex() + 1);
+    /**Completes the future with index once commitIndex reaches it, or fails it if leadership is lost first*/
+    public void awaitCommit(int index, CompletableFuture<Integer> future) {
+        if (role != NodeRole.LEADER) {
+            future.completeExceptionally(new IllegalStateException("This node is not the leader"));
+            return;
+        }
+        commitWaiters.add(new CommitWaiter(index, future));
+        releaseCommitWaiters();
     }
 
-    public synchronized void decrementNextIndex(String nodeId) {
-        int current = nextIndex.getOrDefault(nodeId, getLastLogIndex() + 1);
-        if (current > 1) nextIndex.put(nodeId, current - 1);
+    private void releaseCommitWaiters() {
+        if (commitWaiters.isEmpty() || commitWaiters.peekFirst().index > commitIndex) return;
+        List<CommitWaiter> ready = new ArrayList<>();
+        while (!commitWaiters.isEmpty() && commitWaiters.peekFirst().index <= commitIndex) {
+            ready.add(commitWaiters.pollFirst());
+        }
+        commitNotifier.execute(() -> {
+            for (CommitWaiter w : ready) w.future.complete(w.index);
+        });
     }
 
-    public synchronized int getMatchIndex(String nodeId) {
-        return matchIndex.getOrDefault(nodeId, 0);
+    /**Runs waiter callbacks on the notifier thread, off both the loop and the apply lock. Any thread*/
+    void notifyAsync(Runnable task) {
+        commitNotifier.execute(task);
     }
 
-    public synchronized void updateFollowerProgress(String followerId, int matchIdx) {
-        matchIndex.put(followerId, matchIdx);
-        nextIndex.put(followerId, matchIdx + 1);
-        updateCommitIndexForLeader();
+    /**A node that is no longer leader cannot tell whether its pending writes will commit, the clients retry*/
+    private void failCommitWaiters() {
+        if (commitWaiters.isEmpty()) return;
+        List<CommitWaiter> failed = new ArrayList<>(commitWaiters);
+        commitWaiters.clear();
+        commitNotifier.execute(() -> {
+            for (CommitWaiter w : failed) w.future.completeExceptionally(new IllegalStateException("This node is not the leader"));
+        });
+    }
+
+    private static class CommitWaiter {
+        private final int index;
+        private final CompletableFuture<Integer> future;
+
+        CommitWaiter(int index, CompletableFuture<Integer> future) {
+            this.index = index;
+            this.future = future;
+        }
     }
 
-    private synchronized void updateCommitIndexForLeader() {
-        int N = log.size();
-        for (int i = commitIndex + 1; i <= N; i++) {
-            int count = 1; // count self
-            for (int match : matchIndex.values()) {
-                if (match >= i) count++;
+    /**
+     * Body of the apply thread. The loop hands out the next committed commands, a view of the log that only
+     * takes a moment to build, and they are applied under applyLock alone. setCommitIndex wakes the thread up.
+     */
+    private void applyLoop() {
+        while (true) {
+            Runnable task;
+            while ((task = applierTasks.poll()) != null) task.run();
+
+            int from = lastApplied + 1;
+            LogSlice commands = loop.call(() -> {
+                int count = Math.max(0, Math.min(commitIndex - (from - 1), MAX_APPLY_BATCH));
+                return getEntriesFromTo(from, from + count - 1);
+            });
+            if (commands.size() == 0) {
+                if (applierTasks.isEmpty()) LockSupport.park(this);
+                continue;
             }
-            if (count > (matchIndex.size() + 1) / 2 && getTermAtIndex(i) == currentTerm) {
-                setCommitIndex(i);
+
+            long start = System.nanoTime();
+            List<ApplyWaiter> ready;
+            synchronized (applyLock) {
+                for (int i = 0; i < commands.size(); i++) {
+                    int index = from + i;
+                    if (index <= lastApplied) continue; // covered by a snapshot installed in the meantime
+                    if (commands.byteLength(i) == 0) { // LogEntry.NOOP
+                        lastApplied = index;
+                        continue;
+                    }
+                    try {
+                        stateMachine.apply(index, commands.bytes(i));
+                    } catch (RuntimeException e) {
+                        /**Every node fails the same way on the same command, so skipping it keeps them consistent*/
+                        e.printStackTrace();
+                    }
+                    lastApplied = index;
+                }
+                ready = readyApplyWaiters();
             }
+            completeApplyWaiters(ready);
+            saveLog(from, commands);
+            /**Timed apart from replication so the cost of the state machine itself is visible*/
+            System.out.println("[StateMachine] Applied " + from + ".." + (from + commands.size() - 1) + " in " +
+                    (System.nanoTime() - start) / 1000 + " us");
+            maybeTakeSnapshot();
+        }
+    }
+
+    /**Any thread*/
+    public int getLastApplied() {
+        return lastApplied;
+    }
+
+    /**Completes once the state machine has applied index, for reads that must observe it. Any thread*/
+    public CompletableFuture<Void> awaitApplied(int index) {
+        synchronized (applyLock) {
+            if (lastApplied >= index) return CompletableFuture.completedFuture(null);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            applyWaiters.add(new ApplyWaiter(index, future));
+            return future;
         }
     }
 
-    /**Persistence methods*/
-    private synchronized void saveState() {
+    private List<ApplyWaiter> readyApplyWaiters() {
+        List<ApplyWaiter> ready = new ArrayList<>();
+        while (!applyWaiters.isEmpty() && applyWaiters.peek().index <= lastApplied) {
+            ready.add(applyWaiters.poll());
+        }
+        return ready;
+    }
+
+    private void completeApplyWaiters(List<ApplyWaiter> ready) {
+        if (ready.isEmpty()) return;
+        commitNotifier.execute(() -> {
+            for (ApplyWaiter w : ready) w.future.complete(null);
+        });
+    }
+
+    private static class ApplyWaiter {
+        private final int index;
+        private final CompletableFuture<Void> future;
+
+        ApplyWaiter(int index, CompletableFuture<Void> future) {
+            this.index = index;
+            this.future = future;
+        }
+    }
+
+    /**Reads from the state machine as of lastApplied. Any thread*/
+    public String query(String request) {
+        synchronized (applyLock) {
+            return stateMachine.query(request);
+        }
+    }
+
+    /**Replaces the state machine with the snapshot unless it has already applied past it*/
+    private void restoreStateMachine(Snapshot snapshot) {
+        List<ApplyWaiter> ready;
+        synchronized (applyLock) {
+            if (snapshot.getLastIncludedIndex() <= lastApplied) return;
+            stateMachine.restore(snapshot.getData());
+            lastApplied = snapshot.getLastIncludedIndex();
+            ready = readyApplyWaiters();
+        }
+        completeApplyWaiters(ready);
+        System.out.println("[StateMachine] Restored from snapshot up to index " + snapshot.getLastIncludedIndex());
+    }
+
+    private void maybeTakeSnapshot() {
+        boolean due = loop.call(() -> lastApplied - lastIncludedIndex >= SNAPSHOT_ENTRIES
+                || (logStore.getSizeBytes() >= SNAPSHOT_LOG_BYTES && lastApplied > lastIncludedIndex));
+        if (due) takeSnapshot();
+    }
+
+    /**
+     * Snapshots the state machine at lastApplied and discards the log prefix it covers. On the applier: the state is
+     * captured under applyLock, the file is written and forced here, and only the compaction of the in-memory log is
+     * handed to the loop. The segments it drops are deleted by the SyncStage with the next flush.
+     */
+    private void takeSnapshot() {
+        int index;
+        byte[] data;
+        synchronized (applyLock) {
+            index = lastApplied;
+            data = stateMachine.snapshot();
+        }
+        /**Nothing new, or an InstallSnapshot got further; only the applier moves lastIncludedIndex, so this holds*/
+        Integer term = loop.call(() -> index > lastIncludedIndex ? getTermAtIndex(index) : null);
+        if (term == null) return;
+
+        Snapshot snapshot = new Snapshot(index, term, data);
         try {
-            Gson gson = new Gson();
+            snapshotStore.save(snapshot);
+        } catch (IOException e) {
+            /**The log is still complete, compaction is simply retried at the next trigger*/
+            e.printStackTrace();
+            return;
+        }
+        loop.call(() -> {
+            compactLog(snapshot.getLastIncludedIndex(), snapshot.getLastIncludedTerm());
+            logStore.truncatePrefix(snapshot.getLastIncludedIndex());
+            unsynced = true;
+            latestSnapshot = snapshot;
+            System.out.println("[Snapshot] " + name + " snapshotted up to index " + lastIncludedIndex +
+                    " (term " + lastIncludedTerm + "), " + (getLastLogIndex() - lastIncludedIndex) + " entries retained");
+            return null;
+        });
+    }
 
-            /**Saves metadata safely*/
-            File stateFile = new File(storageDir, "state.json");
-            Map<String, Object> stateMap = new HashMap<>();
-            stateMap.put("currentTerm", currentTerm);
-            stateMap.put("votedFor", votedFor);
-            stateMap.put("leaderId", leaderId);
+    private void compactLog(int index, int term) {
+        if (index >= logStartIndex) {
+            log.dropFirst(Math.min(index, getLastLogIndex()) - logStartIndex + 1);
+            logStartIndex = index + 1;
+        }
+        lastIncludedIndex = index;
+        lastIncludedTerm = term;
+    }
 
-            try (Writer writer = new FileWriter(stateFile)) {
-                gson.toJson(stateMap, writer);
-            }
+    /**
+     * Follower side of InstallSnapshot, on the loop. Completes with false when the chunk does not continue the
+     * snapshot in progress; the last chunk completes once the snapshot is installed and durable
+     */
+    public CompletableFuture<Boolean> receiveSnapshotChunk(InstallSnapshot chunk) {
+        if (chunk.getOffset() == 0) {
+            pendingSnapshot = new ByteArrayOutputStream();
+            pendingSnapshotIndex = chunk.getLastIncludedIndex();
+            pendingSnapshotTerm = chunk.getLastIncludedTerm();
+        } else if (pendingSnapshot == null
+                || pendingSnapshotIndex != chunk.getLastIncludedIndex()
+                || pendingSnapshotTerm != chunk.getLastIncludedTerm()
+                || chunk.getOffset() != pendingSnapshot.size()) {
+            return CompletableFuture.completedFuture(false);
+        }
 
-            /**Save logs*/
-            File logFile = new File(storageDir, "log.json");
-            try (Writer writer = new FileWriter(logFile)) {
-                gson.toJson(log, writer);
-            }
+        byte[] bytes = chunk.getData() == null ? new byte[0] : Base64.getDecoder().decode(chunk.getData());
+        pendingSnapshot.write(bytes, 0, bytes.length);
+        if (!chunk.isDone()) return CompletableFuture.completedFuture(true);
+
+        Snapshot snapshot = new Snapshot(pendingSnapshotIndex, pendingSnapshotTerm, pendingSnapshot.toByteArray());
+        pendingSnapshot = null;
+        if (snapshot.getLastIncludedIndex() <= lastIncludedIndex) return CompletableFuture.completedFuture(true);
+
+        CompletableFuture<Boolean> installed = new CompletableFuture<>();
+        applierTasks.offer(() -> installSnapshot(snapshot, installed));
+        LockSupport.unpark(applier);
+        return installed;
+    }
 
-            System.out.println("[Persistence] State saved for " + nodeId +
-                    " (term=" + currentTerm + ", logSize=" + log.size() + ")");
+    /**On the applier: writes and forces the snapshot, then has the loop switch the log over to it*/
+    private void installSnapshot(Snapshot snapshot, CompletableFuture<Boolean> installed) {
+        int index = snapshot.getLastIncludedIndex();
+        int term = snapshot.getLastIncludedTerm();
+        /**A snapshot taken meanwhile may already cover it; only the applier moves lastIncludedIndex, so this holds*/
+        if (!loop.call(() -> index > lastIncludedIndex)) {
+            installed.complete(true);
+            return;
+        }
+        try {
+            snapshotStore.save(snapshot);
         } catch (IOException e) {
+            /**The leader sends the snapshot again*/
             e.printStackTrace();
+            installed.complete(false);
+            return;
         }
+
+        CompletableFuture<Void> durable = loop.call(() -> {
+            if (index <= getLastLogIndex() && getTermAtIndex(index) == term) {
+                /**The log already continues past the snapshot, keep that suffix*/
+                compactLog(index, term);
+                logStore.truncatePrefix(index);
+            } else {
+                log.clear();
+                try {
+                    logStore.reset(index + 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not install the snapshot on " + name, e);
+                }
+                logStartIndex = index + 1;
+                lastIncludedIndex = index;
+                lastIncludedTerm = term;
+            }
+            unsynced = true;
+            latestSnapshot = snapshot;
+            commitIndex = Math.max(commitIndex, index);
+            System.out.println("[Snapshot] " + name + " installed snapshot up to index " + index + " (term " + term + ")");
+            /**The dropped segments are gone for good once this flush completes*/
+            return persist();
+        });
+        /**Before the next batch is fetched, the entries up to the snapshot are no longer in the log*/
+        restoreStateMachine(snapshot);
+        durable.whenComplete((ok, error) -> installed.complete(error == null));
+    }
+
+    /**Persistence methods, the hard state is written by the SyncStage on the next persist()*/
+    private void saveHardState() {
+        hardStateChanged = true;
     }
 
-    private synchronized void loadState() {
+    private void loadState(long startNanos) {
         try {
             Gson gson = new Gson();
 
-            /**Load the meta data*/
-            File stateFile = new File(storageDir, "state.json");
-            if (stateFile.exists()) {
-                try (Reader reader = new FileReader(stateFile)) {
-                    Type type = new TypeToken<Map<String, Object>>() {}.getType();
-                    Map<String, Object> data = gson.fromJson(reader, type);
-
-                    /**Check for nulls*/
-                    if (data != null) {
-                        currentTerm = ((Double) data.getOrDefault("currentTerm", 0.0)).intValue();
-                        votedFor = (String) data.getOrDefault("votedFor", null);
-                        leaderId = (String) data.getOrDefault("leaderId", null);
+            /**Load the hard state, falling back to a state.json written by older versions*/
+            HardStateStore.HardState hardState = hardStateStore.load();
+            if (hardState != null) {
+                currentTerm = hardState.getTerm();
+                votedFor = hardState.getVotedFor();
+            } else {
+                File stateFile = new File(storageDir, "state.json");
+                if (stateFile.exists()) {
+                    try (Reader reader = new FileReader(stateFile)) {
+                        Type type = new TypeToken<Map<String, Object>>() {}.getType();
+                        Map<String, Object> data = gson.fromJson(reader, type);
+
+                        /**Check for nulls*/
+                        if (data != null) {
+                            currentTerm = ((Double) data.getOrDefault("currentTerm", 0.0)).intValue();
+                            votedFor = (String) data.getOrDefault("votedFor", null);
+                        }
+                    }
+                    hardStateStore.save(currentTerm, votedFor);
+                    if (stateFile.renameTo(new File(storageDir, "state.json.migrated"))) {
+                        System.out.println("[Persistence] Imported state.json into the hard state for " + name);
                     }
                 }
             }
 
+            /**The snapshot comes first, the log only holds what follows it*/
+            Snapshot snapshot = snapshotStore.load();
+            if (snapshot != null) {
+                latestSnapshot = snapshot;
+                lastIncludedIndex = snapshot.getLastIncludedIndex();
+                lastIncludedTerm = snapshot.getLastIncludedTerm();
+                logStartIndex = lastIncludedIndex + 1;
+                restoreStateMachine(snapshot);
+                commitIndex = lastIncludedIndex;
+            }
+
+            /**Logs written before the WAL existed are imported once*/
             File logFile = new File(storageDir, "log.json");
-            if (logFile.exists()) {
+            if (logFile.exists() && logStore.getLastIndex() == 0 && snapshot == null) {
                 try (Reader reader = new FileReader(logFile)) {
                     Type listType = new TypeToken<List<LogEntry>>() {}.getType();
                     List<LogEntry> loaded = gson.fromJson(reader, listType);
-                    if (loaded != null) log.addAll(loaded);
+                    if (loaded != null && !loaded.isEmpty()) {
+                        logStore.append(loaded);
+                        logStore.sync();
+                    }
+                }
+                if (logFile.renameTo(new File(storageDir, "log.json.migrated"))) {
+                    System.out.println("[Persistence] Imported log.json into the WAL for " + name);
                 }
             }
 
-            System.out.println("[Persistence] Loaded state for " + nodeId +
-                    " (term=" + currentTerm + ", logSize=" + log.size() + ")");
+            if (logStore.getLastIndex() < lastIncludedIndex || logStore.getFirstIndex() > lastIncludedIndex + 1) {
+                /**The WAL does not connect to the snapshot (crash during an install), it is superseded*/
+                logStore.reset(lastIncludedIndex + 1);
+                unsynced = true;
+            } else {
+                /**Nothing is read back: entries are fetched from the WAL when first asked for, only new ones are cached*/
+                logStartIndex = logStore.getLastIndex() + 1;
+            }
+            /**The debug dump is continued rather than rewritten, rewriting it would read the whole WAL*/
+            manualLogIndex = getLastLogIndex();
+
+            System.out.println("[Persistence] Loaded state for " + name +
+                    " (term=" + currentTerm + ", snapshotIndex=" + lastIncludedIndex +
+                    ", logSize=" + (getLastLogIndex() - lastIncludedIndex) + ") in " +
+                    (System.nanoTime() - startNanos) / 1_000_000 + " ms");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    /**Saving lgs to the manual_log.txt file*/
-    public synchronized void saveLog() {
-        try {
-            File logFile = new File(storageDir, "manual_log.txt"); // separate from log.json
-            try (Writer writer = new FileWriter(logFile)) {
-                for (LogEntry entry : log) {
-                    writer.write(entry.getTerm() + ":" + entry.getCommand() + "\n");
-                }
+    /**
+     * Appends applied entries to the manual_log.txt file. On the applier, and only committed entries, which are never
+     * truncated, so the file is only ever appended to and the loop never waits for it
+     */
+    private void saveLog(int from, LogSlice entries) {
+        int first = Math.max(from, manualLogIndex + 1);
+        int last = from + entries.size() - 1;
+        if (first > last) return;
+        File logFile = new File(storageDir, "manual_log.txt"); // separate from the WAL
+        try (Writer writer = new BufferedWriter(new FileWriter(logFile, true))) {
+            for (int index = first; index <= last; index++) {
+                writer.write(entries.term(index - from) + ":" + entries.get(index - from) + "\n");
             }
-            System.out.println("[NodeState] Log manually saved for node " + nodeId);
+            manualLogIndex = last;
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     @Override
-    public synchronized String toString() {
+    public String toString() {
         return "NodeState{" +
                 "nodeId='" + nodeId + '\'' +
+                ", groupId=" + groupId +
                 ", term=" + currentTerm +
                 ", votedFor='" + votedFor + '\'' +
                 ", role=" + role +
                 ", leaderId='" + leaderId + '\'' +
-                ", logSize=" + log.size() +
+                ", lastIncludedIndex=" + lastIncludedIndex +
+                ", logSize=" + (getLastLogIndex() - lastIncludedIndex) +
                 ", commitIndex=" + commitIndex +
                 ", lastApplied=" + lastApplied +
-                ", nextIndex=" + nextIndex +
-                ", matchIndex=" + matchIndex +
                 '}';
     }
 }
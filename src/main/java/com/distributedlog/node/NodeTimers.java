@@ -1,12 +1,21 @@
 package com.distributedlog.node;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Election timeout of one node. The deadline is a volatile field checked by the SharedTimer tick, so a heartbeat
+ * pushes it back without allocating anything or touching a thread.
+ */
 public class NodeTimers {
+    /**A follower waits at least this long without hearing from a leader before it starts an election*/
+    public static final long ELECTION_TIMEOUT_MIN_MS = 5000;
+    public static final long ELECTION_TIMEOUT_JITTER_MS = 5000;
+
     private final NodeState nodeState;
     private final ElectionManager electionManager;
-    private Timer electionTimer;
+    /**When this node starts an election unless it hears from a leader first*/
+    private volatile long electionDeadlineNanos;
 
     public NodeTimers(NodeState nodeState, ElectionManager electionManager) {
         this.nodeState = nodeState;
@@ -14,22 +23,23 @@ public class NodeTimers {
     }
 
     public void startElectionTimer() {
-        electionTimer = new Timer(true);
         resetElectionTimeout();
+        SharedTimer.register(this::checkElectionTimeout);
     }
 
+    /**Moves the deadline a new random 5–10s away, called for every request accepted from the leader*/
     public void resetElectionTimeout() {
-        if (electionTimer != null) {
-            electionTimer.cancel();
-            electionTimer = new Timer(true);
-        }
-
-        electionTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                System.out.println("Election timeout! Node becomes CANDIDATE.");
-                electionManager.startElection();
-            }
-        }, 5000 + (int)(Math.random() * 5000)); // random 5–10s
+        long timeoutMs = ELECTION_TIMEOUT_MIN_MS + ThreadLocalRandom.current().nextLong(ELECTION_TIMEOUT_JITTER_MS);
+        electionDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**Timer tick. A leader never times out; a candidate whose election went nowhere tries again after a new timeout*/
+    private void checkElectionTimeout() {
+        if (System.nanoTime() - electionDeadlineNanos < 0) return;
+        resetElectionTimeout();
+        if (nodeState.getRole() == NodeRole.LEADER) return;
+
+        System.out.println("Election timeout! Node becomes CANDIDATE.");
+        electionManager.startElection();
     }
 }
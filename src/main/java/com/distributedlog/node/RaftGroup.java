@@ -0,0 +1,48 @@
+package com.distributedlog.node;
+
+import com.distributedlog.statemachine.KeyValueStateMachine;
+
+import java.util.List;
+
+/**One Raft group on a host: its state and log, its elections and replication, its election timer and its group commit stage*/
+public final class RaftGroup {
+    private final int groupId;
+    private final NodeState nodeState;
+    private final ElectionManager electionManager;
+    private final NodeTimers nodeTimers;
+    private final GroupCommitter groupCommitter;
+
+    RaftGroup(int groupId, int port, List<Integer> peers, SyncStage syncStage) {
+        this.groupId = groupId;
+        this.nodeState = new NodeState("Node" + port, groupId, new KeyValueStateMachine(), syncStage);
+        this.electionManager = new ElectionManager(nodeState, port, peers);
+        this.nodeTimers = new NodeTimers(nodeState, electionManager);
+        this.groupCommitter = new GroupCommitter(nodeState, electionManager);
+    }
+
+    void start() {
+        groupCommitter.start();
+        electionManager.start();
+        nodeTimers.startElectionTimer();
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
+    public NodeState getNodeState() {
+        return nodeState;
+    }
+
+    public ElectionManager getElectionManager() {
+        return electionManager;
+    }
+
+    public NodeTimers getNodeTimers() {
+        return nodeTimers;
+    }
+
+    public GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+}
@@ -0,0 +1,65 @@
+package com.distributedlog.node;
+
+import java.util.List;
+
+/**
+ * Every Raft group one node runs, keyed by group id. Each group is elected and replicated on its own, with its own
+ * loop, log and state machine, so writes to different groups run on different cores. The groups share the node's port
+ * and peer connections, the SharedTimer and one SyncStage that forces all their WALs.
+ * Keys are spread over the groups by hash. Each group prefers a different node as its leader, so the leaders, and
+ * with them the write load, are spread over the cluster rather than piling up on whichever node started first.
+ */
+public final class RaftHost {
+    private final int port;
+    private final RaftGroup[] groups;
+
+    /**clusterPorts lists every node, this one included; each node of the cluster runs the same groupCount groups*/
+    public RaftHost(int port, List<Integer> clusterPorts, int groupCount) {
+        if (groupCount < 1) throw new IllegalArgumentException("At least one group is needed");
+        this.port = port;
+        List<Integer> peers = clusterPorts.stream().filter(p -> p != port).toList();
+        List<Integer> ordered = clusterPorts.stream().sorted().toList();
+
+        SyncStage syncStage = new SyncStage("Node" + port);
+        syncStage.start();
+        this.groups = new RaftGroup[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            groups[g] = new RaftGroup(g, port, peers, syncStage);
+            /**A single group keeps whichever leader wins, there is nothing to spread*/
+            if (groupCount > 1) groups[g].getElectionManager().setPreferredLeader(ordered.get(g % ordered.size()));
+        }
+    }
+
+    /**Starts the group commit stages and election timers of every group*/
+    public void start() {
+        for (RaftGroup group : groups) group.start();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getGroupCount() {
+        return groups.length;
+    }
+
+    /**The group with this id, null when there is none*/
+    public RaftGroup getGroup(int groupId) {
+        return groupId >= 0 && groupId < groups.length ? groups[groupId] : null;
+    }
+
+    public List<RaftGroup> getGroups() {
+        return List.of(groups);
+    }
+
+    /**Group that owns the key; String.hashCode is fixed by the language, so every node and client agrees*/
+    public RaftGroup groupForKey(String key) {
+        return groups[Math.floorMod(key.hashCode(), groups.length)];
+    }
+
+    /**Group that owns the key a "key=value" command writes, the whole command being the key when it has no '='*/
+    public RaftGroup groupForCommand(String command) {
+        int eq = command.indexOf('=');
+        return groupForKey(eq < 0 ? command : command.substring(0, eq).trim());
+    }
+}
@@ -0,0 +1,59 @@
+package com.distributedlog.node;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One timer thread for the whole process, shared by every node and group in it. Nodes register a tick that runs
+ * every TICK_MS and compares the clock with deadlines they keep in volatile fields, so moving a deadline (an election
+ * timeout pushed back by a heartbeat) is a single write that neither creates a task nor wakes a thread.
+ * Ticks have to be quick; real work is handed to the node's loop. Short one-off delays go through the same thread.
+ */
+public final class SharedTimer {
+    /**Resolution of every deadline checked by a tick*/
+    public static final long TICK_MS = Long.getLong("distributedlog.timer.tickMs", 10);
+
+    private static final ScheduledExecutorService EXECUTOR = newExecutor();
+    private static final CopyOnWriteArrayList<Runnable> TICKS = new CopyOnWriteArrayList<>();
+
+    static {
+        EXECUTOR.scheduleAtFixedRate(SharedTimer::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private SharedTimer() {
+    }
+
+    /**Runs tick on the timer thread every TICK_MS from now on*/
+    public static void register(Runnable tick) {
+        TICKS.add(tick);
+    }
+
+    /**Runs task once on the timer thread after the delay*/
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return EXECUTOR.schedule(task, delay, unit);
+    }
+
+    private static void tick() {
+        for (Runnable tick : TICKS) {
+            try {
+                tick.run();
+            } catch (RuntimeException e) {
+                /**A periodic task that throws is never run again, so one failing node must not stop the others*/
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ScheduledExecutorService newExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "raft-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
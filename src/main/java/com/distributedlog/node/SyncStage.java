@@ -0,0 +1,119 @@
+package com.distributedlog.node;
+
+import com.distributedlog.storage.HardStateStore;
+import com.distributedlog.storage.HardStateStore.HardState;
+import com.distributedlog.storage.LogStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Disk stage of a host: forces the WALs and writes the hard state on behalf of the NodeLoops of every group on it,
+ * none of which ever waits for an fsync itself. A loop writes entries into its WAL as it goes and asks for a flush
+ * when it is about to promise durability (an RPC response, a vote request, the leader's own commit vote). Requests
+ * that queue up while a force is running are all covered by the next one, so a busy follower forces once per burst
+ * rather than once per request, and one pass forces every group that asked instead of each group waking a thread.
+ * Requests are served in order, so of the hard states a group queued together the last one is the newest.
+ */
+final class SyncStage implements Runnable {
+    private final String name;
+    private final ConcurrentLinkedQueue<Flush> requests = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean idle;
+
+    SyncStage(String name) {
+        this.name = name;
+        this.thread = new Thread(this, "sync-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**Registers the WAL and hard state of one group, they are flushed through the returned target*/
+    Target attach(String groupName, LogStore logStore, HardStateStore hardStateStore) {
+        return new Target(groupName, logStore, hardStateStore);
+    }
+
+    @Override
+    public void run() {
+        List<Flush> batch = new ArrayList<>();
+        Map<Target, List<Flush>> byTarget = new LinkedHashMap<>();
+        while (true) {
+            Flush request;
+            while ((request = requests.poll()) != null) batch.add(request);
+            if (batch.isEmpty()) {
+                idle = true;
+                if (requests.isEmpty()) LockSupport.park(this);
+                idle = false;
+                continue;
+            }
+
+            for (Flush f : batch) byTarget.computeIfAbsent(f.target, t -> new ArrayList<>()).add(f);
+            /**A group whose disk fails does not hold up the others*/
+            byTarget.forEach(Target::flush);
+            byTarget.clear();
+            batch.clear();
+        }
+    }
+
+    /**The WAL and hard state of one group, flushed by the stage's thread*/
+    final class Target {
+        private final String groupName;
+        private final LogStore logStore;
+        private final HardStateStore hardStateStore;
+        /**Newest hard state handed over and not saved yet, kept across a failed save so it is retried*/
+        private HardState unsavedHardState;
+
+        private Target(String groupName, LogStore logStore, HardStateStore hardStateStore) {
+            this.groupName = groupName;
+            this.logStore = logStore;
+            this.hardStateStore = hardStateStore;
+        }
+
+        /**Completes once everything written to the WAL before the call, and hardState unless it is null, is on disk*/
+        CompletableFuture<Void> flush(HardState hardState) {
+            Flush request = new Flush(this, hardState);
+            requests.offer(request);
+            if (idle) LockSupport.unpark(thread);
+            return request.future;
+        }
+
+        /**On the stage's thread*/
+        private void flush(List<Flush> batch) {
+            try {
+                for (Flush f : batch) {
+                    if (f.hardState != null) unsavedHardState = f.hardState;
+                }
+                if (unsavedHardState != null) {
+                    hardStateStore.save(unsavedHardState.getTerm(), unsavedHardState.getVotedFor());
+                    unsavedHardState = null;
+                }
+                logStore.sync();
+                for (Flush f : batch) f.future.complete(null);
+            } catch (IOException | RuntimeException e) {
+                /**Nothing is acknowledged, the requests are resent and the next flush tries again*/
+                System.out.println("[Sync] Could not flush " + groupName + " on " + name + ": " + e.getMessage());
+                for (Flush f : batch) f.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Flush {
+        private final Target target;
+        private final HardState hardState;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Flush(Target target, HardState hardState) {
+            this.target = target;
+            this.hardState = hardState;
+        }
+    }
+}
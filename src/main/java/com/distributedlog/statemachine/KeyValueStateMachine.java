@@ -0,0 +1,165 @@
+package com.distributedlog.statemachine;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * In-memory key-value store driven by "key=value" commands, the format the CLI already sends.
+ * Keys and values live in two parallel arrays indexed by open addressing with linear probing, so a lookup touches
+ * a couple of adjacent slots and no per-entry node objects are allocated. Commands without '=' are skipped.
+ */
+public class KeyValueStateMachine implements StateMachine {
+    private static final int INITIAL_CAPACITY = 1024;
+    /**The table doubles once it is three quarters full, probe sequences stay short below that*/
+    private static final int MAX_LOAD_PERCENT = 75;
+
+    private String[] keys;
+    private String[] values;
+    private int size;
+    private int shift;
+    private long skipped;
+
+    public KeyValueStateMachine() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public void apply(int index, byte[] command) {
+        int eq = indexOf(command, (byte) '=');
+        if (eq <= 0) {
+            skipped++;
+            return;
+        }
+        /**'=' is ASCII, so splitting the raw bytes never cuts a UTF-8 sequence*/
+        String key = new String(command, 0, eq, StandardCharsets.UTF_8).trim();
+        String value = new String(command, eq + 1, command.length - eq - 1, StandardCharsets.UTF_8).trim();
+        if (key.isEmpty()) {
+            skipped++;
+            return;
+        }
+        put(key, value);
+    }
+
+    /**The request is a key, the answer its current value*/
+    @Override
+    public String query(String request) {
+        if (request == null) return null;
+        int slot = slotOf(request);
+        return keys[slot] == null ? null : values[slot];
+    }
+
+    @Override
+    public byte[] snapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + size * 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(size);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == null) continue;
+                writeString(out, keys[i]);
+                writeString(out, values[i]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void restore(byte[] data) {
+        if (data == null || data.length == 0) {
+            allocate(INITIAL_CAPACITY);
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int count = in.readInt();
+            if (count < 0) throw new IOException("Bad entry count " + count);
+            allocate(capacityFor(count));
+            for (int i = 0; i < count; i++) {
+                put(readString(in), readString(in));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupt key-value snapshot", e);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**Committed commands that were not key=value and left the state untouched*/
+    public long getSkipped() {
+        return skipped;
+    }
+
+    private void put(String key, String value) {
+        int slot = slotOf(key);
+        if (keys[slot] == null) {
+            keys[slot] = key;
+            size++;
+            if (size * 100 > keys.length * MAX_LOAD_PERCENT) {
+                values[slot] = value;
+                grow();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    /**The slot holding key, or the empty slot where it would be inserted*/
+    private int slotOf(String key) {
+        int mask = keys.length - 1;
+        /**Fibonacci hashing spreads String.hashCode() over the high bits, which the shift keeps*/
+        int slot = (key.hashCode() * 0x9E3779B9) >>> shift;
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        String[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = slotOf(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            size++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        values = new String[capacity];
+        size = 0;
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    private static int capacityFor(int count) {
+        int capacity = INITIAL_CAPACITY;
+        while ((long) count * 100 > (long) capacity * MAX_LOAD_PERCENT) capacity *= 2;
+        return capacity;
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("Bad string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
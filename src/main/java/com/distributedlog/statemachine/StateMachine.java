@@ -0,0 +1,21 @@
+package com.distributedlog.statemachine;
+
+/**
+ * The replicated service built on top of the log. NodeState feeds it every committed command exactly once and in
+ * index order, and hands its snapshot bytes to the SnapshotStore when the log is compacted.
+ * Calls are never concurrent with each other, implementations do not need their own locking.
+ */
+public interface StateMachine {
+
+    /**Applies the committed command stored at index*/
+    void apply(int index, byte[] command);
+
+    /**Answers a read against the current state, null when there is nothing to return*/
+    String query(String request);
+
+    /**Serializes the whole state as of the last applied index*/
+    byte[] snapshot();
+
+    /**Replaces the whole state with one produced by snapshot()*/
+    void restore(byte[] data);
+}
@@ -0,0 +1,40 @@
+package com.distributedlog.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**Write-temp, fsync and atomic rename so a crash leaves either the old or the new file, never a mix*/
+final class AtomicFiles {
+    private AtomicFiles() {
+    }
+
+    static void write(File target, ByteBuffer content) throws IOException {
+        File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) channel.write(content);
+            channel.force(true);
+        }
+
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.getParentFile());
+    }
+
+    /**Makes a rename or delete durable; not every platform allows opening a directory, so failures are ignored*/
+    static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.distributedlog.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores the Raft hard state (currentTerm and votedFor) in a small fixed-size record, completely separate
+ * from the log. Every save writes a temp file, forces it and atomically renames it over the old one,
+ * so a crash leaves either the old or the new record and never a mix of both.
+ * Record layout: [int magic][int term][short votedFor length, -1 for null][votedFor bytes][padding][int crc32c].
+ */
+public class HardStateStore {
+    private static final int MAGIC = 0x48535431; // "HST1"
+    private static final int RECORD_BYTES = 256;
+    private static final int MAX_VOTED_FOR_BYTES = RECORD_BYTES - 14;
+
+    private final File file;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES);
+
+    public HardStateStore(File dir) {
+        this.file = new File(dir, "hardstate.bin");
+    }
+
+    /**Returns the stored hard state, or null when there is no valid record*/
+    public synchronized HardState load() throws IOException {
+        if (!file.exists()) return null;
+
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buf.remaining() != RECORD_BYTES || buf.getInt(0) != MAGIC) return null;
+
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, RECORD_BYTES - 4);
+        if ((int) crc.getValue() != buf.getInt(RECORD_BYTES - 4)) return null;
+
+        buf.position(4);
+        int term = buf.getInt();
+        short length = buf.getShort();
+        String votedFor = null;
+        if (length >= 0) {
+            votedFor = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        }
+        return new HardState(term, votedFor);
+    }
+
+    public synchronized void save(int term, String votedFor) throws IOException {
+        byte[] vote = votedFor == null ? null : votedFor.getBytes(StandardCharsets.UTF_8);
+        if (vote != null && vote.length > MAX_VOTED_FOR_BYTES) {
+            throw new IOException("votedFor is too long to persist: " + votedFor);
+        }
+
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(term);
+        buffer.putShort((short) (vote == null ? -1 : vote.length));
+        if (vote != null) buffer.put(vote);
+        while (buffer.position() < RECORD_BYTES - 4) buffer.put((byte) 0);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, RECORD_BYTES - 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        AtomicFiles.write(file, buffer);
+    }
+
+    public static class HardState {
+        private final int term;
+        private final String votedFor;
+
+        public HardState(int term, String votedFor) {
+            this.term = term;
+            this.votedFor = votedFor;
+        }
+
+        public int getTerm() { return term; }
+        public String getVotedFor() { return votedFor; }
+    }
+}
@@ -0,0 +1,51 @@
+package com.distributedlog.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A run of consecutive entries read from the WAL. The records are copied out of the segments in one piece and
+ * left in their on-disk layout; only the position, length and term of each are noted, no entry objects are built.
+ */
+public final class LogRange {
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] terms;
+
+    LogRange(byte[] data, int count) {
+        this.data = data;
+        this.offsets = new int[count];
+        this.lengths = new int[count];
+        this.terms = new int[count];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            int length = buf.getInt(pos);
+            terms[i] = buf.getInt(pos + LogSegment.HEADER_BYTES);
+            offsets[i] = pos + LogSegment.HEADER_BYTES + LogSegment.TERM_BYTES;
+            lengths[i] = length - LogSegment.TERM_BYTES;
+            pos += LogSegment.HEADER_BYTES + length;
+        }
+    }
+
+    public int size() {
+        return terms.length;
+    }
+
+    /**The raw records, command i is getLength(i) bytes at getOffset(i)*/
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
+    public int getLength(int i) {
+        return lengths[i];
+    }
+
+    public int getTerm(int i) {
+        return terms[i];
+    }
+}
@@ -0,0 +1,430 @@
+package com.distributedlog.storage;
+
+import com.distributedlog.node.LogEntry;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of the write-ahead log holding a contiguous run of entries starting at baseIndex.
+ * Record layout: [int length][int crc32c][int term][command bytes], where length covers term + command
+ * and the checksum covers the same bytes.
+ *
+ * Next to it a sparse index file (same base name, .idx) holds one [int relative index][int file position] pair
+ * roughly every distributedlog.wal.indexIntervalBytes of records. A lookup binary searches the index and walks at
+ * most that many bytes of record headers. Sealed segments are read through a read-only memory mapping, the tail,
+ * whose size keeps changing, through positional reads; either way the bytes come from the page cache.
+ * Once a sealed segment has been forced, a last index entry [int record count][int -1] marks it as complete, and
+ * only an index carrying that mark is trusted when the segment is opened again.
+ */
+final class LogSegment implements Closeable {
+    static final String SUFFIX = ".wal";
+    static final String INDEX_SUFFIX = ".idx";
+    static final int HEADER_BYTES = 8;
+    static final int TERM_BYTES = 4;
+    static final int INDEX_ENTRY_BYTES = 8;
+    /**File position of the index entry that marks a segment as sealed and forced*/
+    private static final int SEAL_MARK = -1;
+    private static final int INDEX_INTERVAL_BYTES = Integer.getInteger("distributedlog.wal.indexIntervalBytes", 4096);
+
+    private final int baseIndex;
+    private final File file;
+    private final File indexFile;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+
+    /**Sparse index: record indexEntries[k] (relative to baseIndex) starts at file position indexPositions[k]*/
+    private int[] indexEntries = new int[64];
+    private int[] indexPositions = new int[64];
+    private int indexCount;
+    private int count;
+    private long size;
+    private boolean dirty;
+
+    /**No longer appended to; only then is the file mapped*/
+    private boolean sealed;
+    /**The index file ends with the seal mark*/
+    private boolean sealMarked;
+    private MappedByteBuffer mapped;
+
+    private LogSegment(int baseIndex, File file, FileChannel channel, File indexFile, FileChannel indexChannel) {
+        this.baseIndex = baseIndex;
+        this.file = file;
+        this.channel = channel;
+        this.indexFile = indexFile;
+        this.indexChannel = indexChannel;
+    }
+
+    static String fileName(int baseIndex) {
+        return String.format("%010d%s", baseIndex, SUFFIX);
+    }
+
+    static int parseBaseIndex(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static File indexFileOf(File file) {
+        String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.length() - SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    static LogSegment create(File dir, int baseIndex) throws IOException {
+        File file = new File(dir, fileName(baseIndex));
+        File indexFile = indexFileOf(file);
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel indexChannel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        LogSegment segment = new LogSegment(baseIndex, file, channel, indexFile, indexChannel);
+        segment.dirty = true;
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment. The index file of a sealed one that carries the seal mark is trusted, the segment was
+     * forced before the mark was written, and the records themselves are not read; the tail, which a crash may have
+     * torn, is validated record by record and cut at the first torn or corrupt one. A sealed segment without the mark,
+     * or whose index does not add up, is validated the same way.
+     */
+    static LogSegment open(File file, boolean sealed) throws IOException {
+        File indexFile = indexFileOf(file);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LogSegment segment = new LogSegment(parseBaseIndex(file), file, channel, indexFile, indexChannel);
+        if (!sealed || !segment.loadIndex()) {
+            if (sealed) System.out.println("[WAL] Index of " + file.getName() + " is unusable, validating the segment");
+            segment.recover();
+        }
+        return segment;
+    }
+
+    /**
+     * Restores the sparse index, count and size of a sealed segment from its index file. Only the records after the
+     * last index entry are looked at, to count them. Returns false, leaving the segment untouched, when the index
+     * is missing, has no seal mark or does not match the file.
+     */
+    private boolean loadIndex() throws IOException {
+        long indexBytes = indexChannel.size();
+        long fileSize = channel.size();
+        if (indexBytes < 2 * INDEX_ENTRY_BYTES || indexBytes % INDEX_ENTRY_BYTES != 0 || fileSize > Integer.MAX_VALUE) return false;
+
+        ByteBuffer buf = ByteBuffer.allocate((int) indexBytes);
+        while (buf.hasRemaining()) {
+            if (indexChannel.read(buf, buf.position()) < 0) return false;
+        }
+        buf.flip();
+        int entries = (int) (indexBytes / INDEX_ENTRY_BYTES) - 1;
+        int sealedCount = buf.getInt(entries * INDEX_ENTRY_BYTES);
+        if (buf.getInt(entries * INDEX_ENTRY_BYTES + 4) != SEAL_MARK) return false;
+        int[] loadedEntries = new int[Math.max(64, entries)];
+        int[] loadedPositions = new int[Math.max(64, entries)];
+        for (int k = 0; k < entries; k++) {
+            loadedEntries[k] = buf.getInt();
+            loadedPositions[k] = buf.getInt();
+            boolean ordered = k == 0
+                    ? loadedEntries[k] == 0 && loadedPositions[k] == 0
+                    : loadedEntries[k] > loadedEntries[k - 1] && loadedPositions[k] > loadedPositions[k - 1];
+            if (!ordered || loadedPositions[k] >= fileSize) return false;
+        }
+
+        /**Count the records after the last index entry, they have to end exactly at the end of the file*/
+        long start = loadedPositions[entries - 1];
+        ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, start, fileSize - start);
+        int records = loadedEntries[entries - 1];
+        int p = 0;
+        while (p < block.limit()) {
+            if (block.limit() - p < HEADER_BYTES) return false;
+            int length = block.getInt(p);
+            if (length < TERM_BYTES || length > block.limit() - p - HEADER_BYTES) return false;
+            p += HEADER_BYTES + length;
+            records++;
+        }
+        if (records != sealedCount) return false;
+
+        indexEntries = loadedEntries;
+        indexPositions = loadedPositions;
+        indexCount = entries;
+        count = records;
+        size = fileSize;
+        sealed = true;
+        sealMarked = true;
+        return true;
+    }
+
+    private void recover() throws IOException {
+        count = 0;
+        indexCount = 0;
+        ByteBuffer buf = readAt(0, (int) channel.size());
+        CRC32C crc = new CRC32C();
+        long pos = 0;
+        while (buf.remaining() >= HEADER_BYTES) {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length < TERM_BYTES || length > buf.remaining()) break;
+
+            crc.reset();
+            crc.update(buf.array(), buf.position(), length);
+            if ((int) crc.getValue() != checksum) break;
+
+            indexRecord(pos);
+            count++;
+            buf.position(buf.position() + length);
+            pos += HEADER_BYTES + length;
+        }
+
+        size = pos;
+        if (channel.size() != pos) {
+            System.out.println("[WAL] Truncating " + file.getName() + " at byte " + pos +
+                    " (found " + (channel.size() - pos) + " bytes of torn or corrupt data)");
+            channel.truncate(pos);
+        }
+        /**The index is rebuilt from the records, whatever the old index file said*/
+        indexChannel.truncate(0);
+        writeIndex(0);
+        dirty = true;
+    }
+
+    /**Appends entries[from..] while they fit in maxBytes (always at least one) and returns the next unwritten position*/
+    int append(List<LogEntry> entries, int from, long maxBytes) throws IOException {
+        int to = from;
+        long projected = size;
+        byte[][] payloads = new byte[entries.size() - from][];
+        while (to < entries.size()) {
+            byte[] payload = encodeCommand(entries.get(to));
+            long recordBytes = HEADER_BYTES + TERM_BYTES + payload.length;
+            if (to > from && projected + recordBytes > maxBytes) break;
+            payloads[to - from] = payload;
+            projected += recordBytes;
+            to++;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) (projected - size));
+        CRC32C crc = new CRC32C();
+        long pos = size;
+        int indexed = indexCount;
+        for (int i = from; i < to; i++) {
+            byte[] payload = payloads[i - from];
+            int start = buf.position();
+            buf.putInt(TERM_BYTES + payload.length);
+            buf.putInt(0);
+            buf.putInt(entries.get(i).getTerm());
+            buf.put(payload);
+
+            crc.reset();
+            crc.update(buf.array(), start + HEADER_BYTES, TERM_BYTES + payload.length);
+            buf.putInt(start + 4, (int) crc.getValue());
+
+            indexRecord(pos);
+            count++;
+            pos += HEADER_BYTES + TERM_BYTES + payload.length;
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf, size + buf.position());
+        }
+        writeIndex(indexed);
+        size = pos;
+        dirty = true;
+        return to;
+    }
+
+    /**Term of the record at relative index rel*/
+    int termAt(int rel) throws IOException {
+        long pos = positionOf(rel);
+        return region(pos + HEADER_BYTES, pos + HEADER_BYTES + TERM_BYTES).getInt(0);
+    }
+
+    /**
+     * File position where record rel starts, size for rel == count. Binary searches the sparse index for the
+     * closest entry at or before rel and skips the remaining records by their length prefix.
+     */
+    long positionOf(int rel) throws IOException {
+        if (rel >= count) return size;
+        int k = Arrays.binarySearch(indexEntries, 0, indexCount, rel);
+        if (k >= 0) return indexPositions[k];
+        k = -k - 2;
+
+        long start = indexPositions[k];
+        long end = k + 1 < indexCount ? indexPositions[k + 1] : size;
+        ByteBuffer block = region(start, end);
+        int p = 0;
+        for (int i = indexEntries[k]; i < rel; i++) {
+            p += HEADER_BYTES + block.getInt(p);
+        }
+        return start + p;
+    }
+
+    /**Copies the raw records between two file positions into dest at offset*/
+    void copy(long from, long to, byte[] dest, int offset) throws IOException {
+        region(from, to).get(0, dest, offset, (int) (to - from));
+    }
+
+    /**Keeps only the first keep entries of this segment*/
+    void truncate(int keep) throws IOException {
+        if (keep >= count) return;
+        size = positionOf(keep);
+        count = keep;
+        int keptIndex = indexCount;
+        while (keptIndex > 0 && indexEntries[keptIndex - 1] >= keep) keptIndex--;
+        indexCount = keptIndex;
+        mapped = null;
+        channel.truncate(size);
+        indexChannel.truncate((long) indexCount * INDEX_ENTRY_BYTES);
+        sealMarked = false;
+        dirty = true;
+    }
+
+    /**
+     * Marks the segment as finished, reads from now on go through a memory mapping. Nothing is forced here: the next
+     * sync() forces it and then writes the seal mark
+     */
+    void seal() {
+        sealed = true;
+    }
+
+    /**The segment is the tail again after the ones behind it were truncated away*/
+    void unseal() throws IOException {
+        sealed = false;
+        mapped = null;
+        if (sealMarked) {
+            indexChannel.truncate((long) indexCount * INDEX_ENTRY_BYTES);
+            sealMarked = false;
+        }
+    }
+
+    /**
+     * Makes a segment that was opened as a sealed one the tail, because the segments after it were discarded. Its
+     * index was trusted, but appends now continue after its last record, so it is validated record by record and
+     * cut at the first torn or corrupt one, exactly like a tail
+     */
+    void reopenAsTail() throws IOException {
+        unseal();
+        recover();
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /**Sealed, and forced since, but not marked as such yet*/
+    boolean needsSealMark() {
+        return sealed && !sealMarked && !dirty;
+    }
+
+    /**
+     * Appends the seal mark to the index. Only once everything was forced: if the mark survives a crash the records
+     * did too. The mark itself is not forced, without it the segment is merely validated again on the next start
+     */
+    void markSealed() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        buf.putInt(count).putInt(SEAL_MARK).flip();
+        long base = (long) indexCount * INDEX_ENTRY_BYTES;
+        while (buf.hasRemaining()) {
+            indexChannel.write(buf, base + buf.position());
+        }
+        sealMarked = true;
+    }
+
+    /**Clears the dirty flag and reports whether there was anything to force*/
+    boolean markClean() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+        indexChannel.force(false);
+    }
+
+    void delete() throws IOException {
+        close();
+        mapped = null;
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Could not delete segment " + file);
+        }
+        if (!indexFile.delete() && indexFile.exists()) {
+            throw new IOException("Could not delete segment index " + indexFile);
+        }
+    }
+
+    int getBaseIndex() { return baseIndex; }
+    int getLastIndex() { return baseIndex + count - 1; }
+    int getCount() { return count; }
+    long getSize() { return size; }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        indexChannel.close();
+    }
+
+    /**
+     * The bytes between two file positions. A sealed segment hands out a slice of its mapping; the tail is read
+     * into a small heap buffer instead, mapping a file that grows with every append would mean remapping constantly.
+     */
+    private ByteBuffer region(long from, long to) throws IOException {
+        if (sealed) {
+            if (mapped == null) mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mapped.slice((int) from, (int) (to - from));
+        }
+        return readAt(from, (int) (to - from));
+    }
+
+    private ByteBuffer readAt(long position, int bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                if (position + bytes <= size) throw new EOFException("Segment " + file.getName() + " ends early");
+                break;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**Adds the record about to become number count to the sparse index if it starts a new interval*/
+    private void indexRecord(long pos) {
+        if (indexCount > 0 && pos - indexPositions[indexCount - 1] < INDEX_INTERVAL_BYTES) return;
+        if (indexCount == indexEntries.length) {
+            indexEntries = Arrays.copyOf(indexEntries, indexCount * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+        }
+        indexEntries[indexCount] = count;
+        indexPositions[indexCount] = (int) pos;
+        indexCount++;
+    }
+
+    /**Writes the index entries from position from onwards to the index file*/
+    private void writeIndex(int from) throws IOException {
+        if (from >= indexCount) return;
+        ByteBuffer buf = ByteBuffer.allocate((indexCount - from) * INDEX_ENTRY_BYTES);
+        for (int k = from; k < indexCount; k++) {
+            buf.putInt(indexEntries[k]);
+            buf.putInt(indexPositions[k]);
+        }
+        buf.flip();
+        long base = (long) from * INDEX_ENTRY_BYTES;
+        while (buf.hasRemaining()) {
+            indexChannel.write(buf, base + buf.position());
+        }
+    }
+
+    private static byte[] encodeCommand(LogEntry entry) {
+        return entry.getCommand() == null ? new byte[0] : entry.getCommand().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+package com.distributedlog.storage;
+
+import com.distributedlog.node.LogEntry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Durable storage for the replicated log.
+ * Uses the same 1-based indexing as NodeState: the first entry ever written has index 1.
+ * Appends are only buffered by the operating system until sync() is called, so callers decide
+ * when a batch has to be durable.
+ */
+public interface LogStore extends Closeable {
+
+    /**Index of the first entry held by the store, lastIndex + 1 when the store is empty*/
+    int getFirstIndex();
+
+    /**Index of the last entry held by the store, 0 when nothing was ever written*/
+    int getLastIndex();
+
+    /**Appends entries at getLastIndex() + 1 onwards*/
+    void append(List<LogEntry> entries) throws IOException;
+
+    /**Removes every entry with index >= fromIndex*/
+    void truncateSuffix(int fromIndex) throws IOException;
+
+    /**
+     * Drops whole segments whose entries all have index <= upToIndex, used after a snapshot covers them. The files
+     * are only removed by the next sync()
+     */
+    void truncatePrefix(int upToIndex);
+
+    /**
+     * Discards every entry and continues the log at nextIndex, used when an installed snapshot replaces the log.
+     * Like truncatePrefix, old files are removed by the next sync(), which has to complete before the reset is durable
+     */
+    void reset(int nextIndex) throws IOException;
+
+    /**Forces everything appended or truncated so far to stable storage, and deletes segments dropped since the last call*/
+    void sync() throws IOException;
+
+    /**Term of the entry at index, which has to lie between getFirstIndex() and getLastIndex()*/
+    int getTerm(int index) throws IOException;
+
+    /**Reads the entries fromIndex..toIndex (inclusive) without turning them into objects*/
+    LogRange read(int fromIndex, int toIndex) throws IOException;
+
+    /**Bytes held by all entries the store still keeps*/
+    long getSizeBytes();
+}
@@ -0,0 +1,256 @@
+package com.distributedlog.storage;
+
+import com.distributedlog.node.LogEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Append-only write-ahead log split into segment files of roughly maxSegmentBytes each.
+ * Only the tail segment is ever written; older segments are sealed and only read (through a memory mapping)
+ * or deleted. Reads locate entries through each segment's sparse index, so the log never has to fit in memory.
+ * Segments dropped by truncatePrefix or reset are only retired: the caller, typically a NodeLoop, never waits for a
+ * file to be removed; sync() deletes them and makes the removal durable before forcing anything new.
+ */
+public class SegmentedLogStore implements LogStore {
+    public static final long DEFAULT_SEGMENT_BYTES =
+            Long.getLong("distributedlog.wal.segmentBytes", 16L * 1024 * 1024);
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final List<LogSegment> segments = new ArrayList<>();
+    /**No longer part of the log, deleted by the next sync()*/
+    private final List<LogSegment> retired = new ArrayList<>();
+    /**A segment file was created since the last sync(), the directory entry has to be forced as well*/
+    private boolean created;
+    private final Object syncLock = new Object();
+    private int nextIndex = 1;
+
+    public SegmentedLogStore(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public SegmentedLogStore(File dir, long maxSegmentBytes) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create WAL directory " + dir);
+        }
+        openSegments();
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(LogSegment.SUFFIX));
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingInt(LogSegment::parseBaseIndex));
+
+        for (int i = 0; i < files.length; i++) {
+            LogSegment segment = LogSegment.open(files[i], i < files.length - 1);
+            if (!segments.isEmpty() && segment.getBaseIndex() != nextIndex) {
+                /**A gap means a later segment survived a crash its predecessor did not; nothing after it is usable*/
+                System.out.println("[WAL] Discarding " + files[i].getName() + ", expected base index " + nextIndex);
+                segment.delete();
+                continue;
+            }
+            if (!segments.isEmpty()) segments.get(segments.size() - 1).seal();
+            segments.add(segment);
+            nextIndex = segment.getBaseIndex() + segment.getCount();
+        }
+        /**Appends continue in the last segment kept; one opened as sealed gets the tail's validation first*/
+        if (!segments.isEmpty()) {
+            LogSegment tail = segments.get(segments.size() - 1);
+            if (tail.isSealed()) {
+                System.out.println("[WAL] Validating " + LogSegment.fileName(tail.getBaseIndex()) + ", it becomes the tail");
+                tail.reopenAsTail();
+                nextIndex = tail.getBaseIndex() + tail.getCount();
+            } else {
+                tail.unseal();
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getFirstIndex() {
+        return segments.isEmpty() ? nextIndex : segments.get(0).getBaseIndex();
+    }
+
+    @Override
+    public synchronized int getLastIndex() {
+        return nextIndex - 1;
+    }
+
+    @Override
+    public synchronized void append(List<LogEntry> entries) throws IOException {
+        int i = 0;
+        while (i < entries.size()) {
+            LogSegment tail = tailForAppend();
+            i = tail.append(entries, i, maxSegmentBytes);
+            nextIndex = tail.getLastIndex() + 1;
+        }
+    }
+
+    private LogSegment tailForAppend() throws IOException {
+        LogSegment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (tail == null || (tail.getCount() > 0 && tail.getSize() >= maxSegmentBytes)) {
+            /**Only sealed here, the append must not wait for a force: the next sync() forces and marks it*/
+            if (tail != null) tail.seal();
+            tail = newSegment(nextIndex);
+            segments.add(tail);
+        }
+        return tail;
+    }
+
+    /**A retired segment may still hold the file name, it has to go before the new file replaces it*/
+    private LogSegment newSegment(int baseIndex) throws IOException {
+        for (int i = 0; i < retired.size(); i++) {
+            if (retired.get(i).getBaseIndex() == baseIndex) retired.remove(i--).delete();
+        }
+        created = true;
+        return LogSegment.create(dir, baseIndex);
+    }
+
+    @Override
+    public synchronized void truncateSuffix(int fromIndex) throws IOException {
+        if (fromIndex >= nextIndex) return;
+
+        while (!segments.isEmpty() && segments.get(segments.size() - 1).getBaseIndex() >= fromIndex) {
+            segments.remove(segments.size() - 1).delete();
+        }
+        if (!segments.isEmpty()) {
+            LogSegment tail = segments.get(segments.size() - 1);
+            tail.unseal();
+            tail.truncate(fromIndex - tail.getBaseIndex());
+        }
+        nextIndex = fromIndex;
+    }
+
+    @Override
+    public synchronized void truncatePrefix(int upToIndex) {
+        while (segments.size() > 1 && segments.get(0).getLastIndex() <= upToIndex) {
+            retired.add(segments.remove(0));
+        }
+    }
+
+    @Override
+    public synchronized void reset(int nextIndex) throws IOException {
+        while (!segments.isEmpty()) {
+            retired.add(segments.remove(segments.size() - 1));
+        }
+        this.nextIndex = nextIndex;
+        segments.add(newSegment(nextIndex));
+    }
+
+    /**
+     * The fsync itself runs outside the store monitor so the next batch can be appended while this one is
+     * being forced; syncLock keeps concurrent callers from returning before an in-progress force finishes.
+     * Retired segments are deleted first: a reset is durable before any entry appended after it is.
+     */
+    @Override
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            List<LogSegment> dirty = new ArrayList<>(2);
+            boolean directoryChanged;
+            synchronized (this) {
+                directoryChanged = created;
+                /**Under the monitor, so a new segment cannot take the name of one being deleted*/
+                while (!retired.isEmpty()) {
+                    retired.remove(retired.size() - 1).delete();
+                    directoryChanged = true;
+                }
+                created = false;
+                for (LogSegment segment : segments) {
+                    if (segment.markClean()) dirty.add(segment);
+                }
+            }
+            if (directoryChanged) AtomicFiles.syncDirectory(dir);
+            for (LogSegment segment : dirty) {
+                try {
+                    segment.force();
+                } catch (ClosedChannelException e) {
+                    /**Segment was deleted by a truncation in the meantime, nothing left to force*/
+                }
+            }
+            /**Segments rolled over since the last sync are complete on disk now; ones written to again stay dirty*/
+            synchronized (this) {
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    if (segments.get(i).needsSealMark()) segments.get(i).markSealed();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getTerm(int index) throws IOException {
+        LogSegment segment = segments.get(segmentOf(index));
+        return segment.termAt(index - segment.getBaseIndex());
+    }
+
+    /**Copies the records of the range out of each segment it spans into one array*/
+    @Override
+    public synchronized LogRange read(int fromIndex, int toIndex) throws IOException {
+        if (toIndex < fromIndex) return new LogRange(new byte[0], 0);
+        int first = segmentOf(fromIndex);
+        int last = segmentOf(toIndex);
+        long[] starts = new long[last - first + 1];
+        long[] ends = new long[last - first + 1];
+        long bytes = 0;
+        for (int s = first; s <= last; s++) {
+            LogSegment segment = segments.get(s);
+            int from = Math.max(fromIndex, segment.getBaseIndex()) - segment.getBaseIndex();
+            int to = Math.min(toIndex, segment.getLastIndex()) - segment.getBaseIndex();
+            starts[s - first] = segment.positionOf(from);
+            ends[s - first] = segment.positionOf(to + 1);
+            bytes += ends[s - first] - starts[s - first];
+        }
+        if (bytes > Integer.MAX_VALUE) throw new IOException("Range " + fromIndex + ".." + toIndex + " is too large to read at once");
+
+        byte[] data = new byte[(int) bytes];
+        int offset = 0;
+        for (int s = first; s <= last; s++) {
+            segments.get(s).copy(starts[s - first], ends[s - first], data, offset);
+            offset += (int) (ends[s - first] - starts[s - first]);
+        }
+        return new LogRange(data, toIndex - fromIndex + 1);
+    }
+
+    /**Position in segments of the segment holding index*/
+    private int segmentOf(int index) {
+        if (index < getFirstIndex() || index >= nextIndex) {
+            throw new IllegalArgumentException("Index " + index + " is not in the log (" + getFirstIndex() + ".." + (nextIndex - 1) + ")");
+        }
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).getBaseIndex() <= index) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long bytes = 0;
+        for (LogSegment segment : segments) {
+            bytes += segment.getSize();
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+        for (LogSegment segment : retired) {
+            segment.close();
+        }
+        segments.clear();
+        retired.clear();
+    }
+}
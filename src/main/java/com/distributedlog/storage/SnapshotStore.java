@@ -0,0 +1,77 @@
+package com.distributedlog.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the latest state machine snapshot in a single file, replaced atomically on every save.
+ * Layout: [int magic][int lastIncludedIndex][int lastIncludedTerm][int data length][data][int crc32c].
+ */
+public class SnapshotStore {
+    private static final int MAGIC = 0x534E5031; // "SNP1"
+    private static final int HEADER_BYTES = 16;
+
+    private final File file;
+
+    public SnapshotStore(File dir) {
+        this.file = new File(dir, "snapshot.bin");
+    }
+
+    public synchronized void save(Snapshot snapshot) throws IOException {
+        byte[] data = snapshot.getData();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + data.length + 4);
+        buf.putInt(MAGIC);
+        buf.putInt(snapshot.getLastIncludedIndex());
+        buf.putInt(snapshot.getLastIncludedTerm());
+        buf.putInt(data.length);
+        buf.put(data);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+
+        AtomicFiles.write(file, buf);
+    }
+
+    /**Returns the stored snapshot, or null when there is none or it fails validation*/
+    public synchronized Snapshot load() throws IOException {
+        if (!file.exists()) return null;
+
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buf.remaining() < HEADER_BYTES + 4 || buf.getInt(0) != MAGIC) return null;
+
+        int length = buf.getInt(12);
+        if (length < 0 || length != buf.remaining() - HEADER_BYTES - 4) return null;
+
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, HEADER_BYTES + length);
+        if ((int) crc.getValue() != buf.getInt(HEADER_BYTES + length)) {
+            System.out.println("[Snapshot] Ignoring " + file + ", checksum mismatch");
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        System.arraycopy(buf.array(), HEADER_BYTES, data, 0, length);
+        return new Snapshot(buf.getInt(4), buf.getInt(8), data);
+    }
+
+    public static class Snapshot {
+        private final int lastIncludedIndex;
+        private final int lastIncludedTerm;
+        private final byte[] data;
+
+        public Snapshot(int lastIncludedIndex, int lastIncludedTerm, byte[] data) {
+            this.lastIncludedIndex = lastIncludedIndex;
+            this.lastIncludedTerm = lastIncludedTerm;
+            this.data = data;
+        }
+
+        public int getLastIncludedIndex() { return lastIncludedIndex; }
+        public int getLastIncludedTerm() { return lastIncludedTerm; }
+        public byte[] getData() { return data; }
+    }
+}
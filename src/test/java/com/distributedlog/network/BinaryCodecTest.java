@@ -0,0 +1,196 @@
+package com.distributedlog.network;
+
+import com.distributedlog.messages.AppendEntries;
+import com.distributedlog.messages.AppendEntriesResponse;
+import com.distributedlog.messages.ClientBatch;
+import com.distributedlog.messages.ClientBatchResponse;
+import com.distributedlog.messages.InstallSnapshot;
+import com.distributedlog.messages.InstallSnapshotResponse;
+import com.distributedlog.messages.ReadIndex;
+import com.distributedlog.messages.ReadIndexResponse;
+import com.distributedlog.messages.RequestVote;
+import com.distributedlog.messages.RequestVoteResponse;
+import com.distributedlog.messages.TimeoutNow;
+import com.distributedlog.messages.TimeoutNowResponse;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**Every message type is encoded and decoded again, with AppendEntries compression off and on*/
+class BinaryCodecTest {
+
+    /**Encodes message, then decodes it the way a reader does once it has taken the length prefix off*/
+    private static Frame roundTrip(Object message, int groupId, boolean deflate) throws IOException {
+        ByteBuffer buf = BinaryCodec.encode(42, groupId, message, deflate);
+        assertEquals(buf.remaining() - 4, buf.getInt());
+        Frame frame = BinaryCodec.decode(buf);
+        assertEquals(42, frame.requestId);
+        assertEquals(groupId, frame.groupId);
+        return frame;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void requestVote(boolean deflate) throws IOException {
+        RequestVote vote = (RequestVote) roundTrip(new RequestVote(7, "Node5001", 120, 6, true, false), 0, deflate).message;
+        assertEquals(7, vote.getTerm());
+        assertEquals("Node5001", vote.getCandidateId());
+        assertEquals(120, vote.getLastLogIndex());
+        assertEquals(6, vote.getLastLogTerm());
+        assertTrue(vote.isPreVote());
+        assertFalse(vote.isLeadershipTransfer());
+
+        RequestVote transfer = (RequestVote) roundTrip(new RequestVote(8, "Node5002", 1, 1, false, true), 3, deflate).message;
+        assertFalse(transfer.isPreVote());
+        assertTrue(transfer.isLeadershipTransfer());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void requestVoteResponse(boolean deflate) throws IOException {
+        RequestVoteResponse resp = (RequestVoteResponse) roundTrip(new RequestVoteResponse(9, true), 1, deflate).message;
+        assertEquals(9, resp.getTerm());
+        assertTrue(resp.isVoteGranted());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void heartbeat(boolean deflate) throws IOException {
+        AppendEntries append = (AppendEntries) roundTrip(new AppendEntries(4, "Leader5001", 10, 3, null, 9), 0, deflate).message;
+        assertEquals(4, append.getTerm());
+        assertEquals("Leader5001", append.getLeaderId());
+        assertEquals(10, append.getPrevLogIndex());
+        assertEquals(3, append.getPrevLogTerm());
+        assertEquals(9, append.getLeaderCommit());
+        assertNull(append.getEntries());
+        assertNull(append.getCodec());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void smallAppendIsNeverDeflated(boolean deflate) throws IOException {
+        List<String> entries = List.of("set a=1", "set é=ünïcode", "");
+        AppendEntries sent = new AppendEntries(5, "Leader5002", 20, 4, entries, new int[]{4, 5, 5}, 21);
+        AppendEntries append = (AppendEntries) roundTrip(sent, 2, deflate).message;
+        assertEquals(entries, append.getEntries());
+        assertArrayEquals(new int[]{4, 5, 5}, append.getEntryTerms());
+        assertEquals(21, append.getLeaderCommit());
+        assertNull(append.getCodec());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void largeAppend(boolean deflate) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) entries.add("set key" + i + "=value" + i);
+        /**Entries without explicit terms take the message term*/
+        AppendEntries append = (AppendEntries) roundTrip(new AppendEntries(6, "Leader5003", 100, 6, entries, 1100), 0, deflate).message;
+        assertEquals(entries, append.getEntries());
+        int[] terms = new int[entries.size()];
+        Arrays.fill(terms, 6);
+        assertArrayEquals(terms, append.getEntryTerms());
+        assertEquals(deflate ? "deflate" : null, append.getCodec());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void appendEntriesResponse(boolean deflate) throws IOException {
+        AppendEntriesResponse resp = (AppendEntriesResponse) roundTrip(new AppendEntriesResponse(3, false, 17, 2, 11), 0, deflate).message;
+        assertEquals(3, resp.getTerm());
+        assertFalse(resp.isSuccess());
+        assertEquals(17, resp.getMatchIndex());
+        assertEquals(2, resp.getConflictTerm());
+        assertEquals(11, resp.getConflictIndex());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void installSnapshot(boolean deflate) throws IOException {
+        InstallSnapshot sent = new InstallSnapshot(12, "Leader5001", 3000, 11, 65536L, "{\"a\":\"1\"}", true);
+        InstallSnapshot chunk = (InstallSnapshot) roundTrip(sent, 1, deflate).message;
+        assertEquals(12, chunk.getTerm());
+        assertEquals("Leader5001", chunk.getLeaderId());
+        assertEquals(3000, chunk.getLastIncludedIndex());
+        assertEquals(11, chunk.getLastIncludedTerm());
+        assertEquals(65536L, chunk.getOffset());
+        assertEquals("{\"a\":\"1\"}", chunk.getData());
+        assertTrue(chunk.isDone());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void installSnapshotResponse(boolean deflate) throws IOException {
+        InstallSnapshotResponse resp = (InstallSnapshotResponse) roundTrip(new InstallSnapshotResponse(12, true), 1, deflate).message;
+        assertEquals(12, resp.getTerm());
+        assertTrue(resp.isSuccess());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void clientBatch(boolean deflate) throws IOException {
+        List<String> commands = List.of("set x=5", "set y=24", "get x");
+        ClientBatch batch = (ClientBatch) roundTrip(new ClientBatch(commands), Frame.NO_GROUP, deflate).message;
+        assertEquals(commands, batch.getCommands());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void clientBatchResponse(boolean deflate) throws IOException {
+        ClientBatchResponse ok = (ClientBatchResponse) roundTrip(
+                new ClientBatchResponse("ok", "Leader5001", new long[]{5, 6, 7}), Frame.NO_GROUP, deflate).message;
+        assertEquals("ok", ok.getStatus());
+        assertEquals("Leader5001", ok.getLeaderId());
+        assertArrayEquals(new long[]{5, 6, 7}, ok.getIndexes());
+
+        ClientBatchResponse redirect = (ClientBatchResponse) roundTrip(
+                new ClientBatchResponse("redirect", null, null), Frame.NO_GROUP, deflate).message;
+        assertEquals("redirect", redirect.getStatus());
+        assertNull(redirect.getLeaderId());
+        assertNull(redirect.getIndexes());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void readIndex(boolean deflate) throws IOException {
+        ReadIndex request = (ReadIndex) roundTrip(new ReadIndex("Node5002"), 0, deflate).message;
+        assertEquals("Node5002", request.getFollowerId());
+
+        ReadIndexResponse resp = (ReadIndexResponse) roundTrip(new ReadIndexResponse(true, 88, "Leader5001"), 0, deflate).message;
+        assertTrue(resp.isSuccess());
+        assertEquals(88, resp.getReadIndex());
+        assertEquals("Leader5001", resp.getLeaderId());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void timeoutNow(boolean deflate) throws IOException {
+        TimeoutNow request = (TimeoutNow) roundTrip(new TimeoutNow(14, "Leader5003", 512), 2, deflate).message;
+        assertEquals(14, request.getTerm());
+        assertEquals("Leader5003", request.getLeaderId());
+        assertEquals(512, request.getLastLogIndex());
+
+        TimeoutNowResponse resp = (TimeoutNowResponse) roundTrip(new TimeoutNowResponse(14, true), 2, deflate).message;
+        assertEquals(14, resp.getTerm());
+        assertTrue(resp.isAccepted());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void frameTypeMatchesMessage(boolean deflate) throws IOException {
+        Frame frame = roundTrip(new RequestVoteResponse(1, false), 0, deflate);
+        assertEquals(BinaryCodec.REQUEST_VOTE_RESPONSE, frame.type);
+        assertInstanceOf(RequestVoteResponse.class, frame.message);
+    }
+}
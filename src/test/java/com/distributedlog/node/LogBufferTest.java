@@ -0,0 +1,138 @@
+package com.distributedlog.node;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LogBufferTest {
+
+    /**Appends "cmd-i" in term i / 100 + 1 for every i in [from, to)*/
+    private static void append(LogBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) buffer.append(i / 100 + 1, "cmd-" + i);
+    }
+
+    private static List<String> commands(int from, int to) {
+        List<String> commands = new ArrayList<>();
+        for (int i = from; i < to; i++) commands.add("cmd-" + i);
+        return commands;
+    }
+
+    @Test
+    void appendAndSlice() {
+        LogBuffer buffer = new LogBuffer();
+        buffer.append(1, "set a=1");
+        buffer.append(1, "set é=ü");
+        buffer.append(2, null);
+        buffer.append(2, "");
+
+        assertEquals(4, buffer.size());
+        LogSlice slice = buffer.slice(0, 4);
+        assertEquals(List.of("set a=1", "set é=ü", "", ""), slice);
+        assertEquals("set é=ü".getBytes(StandardCharsets.UTF_8).length, slice.byteLength(1));
+        assertArrayEquals(new int[]{1, 1, 2, 2}, buffer.terms(0, 4));
+        assertEquals(2, buffer.term(3));
+    }
+
+    @Test
+    void dropFirstKeepsTheRest() {
+        LogBuffer buffer = new LogBuffer();
+        append(buffer, 0, 3000);
+        buffer.dropFirst(1000);
+
+        assertEquals(2000, buffer.size());
+        assertEquals(11, buffer.term(0));
+        assertEquals(commands(1000, 3000), buffer.slice(0, 2000));
+
+        /**Appending after a drop slides the live entries back or grows the arrays, positions stay the same*/
+        append(buffer, 3000, 5000);
+        assertEquals(4000, buffer.size());
+        assertEquals(commands(1000, 5000), buffer.slice(0, 4000));
+        assertEquals(50, buffer.term(3999));
+    }
+
+    @Test
+    void dropFirstOfEverythingClears() {
+        LogBuffer buffer = new LogBuffer();
+        append(buffer, 0, 10);
+        buffer.dropFirst(10);
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.retainedBytes());
+
+        append(buffer, 10, 20);
+        assertEquals(commands(10, 20), buffer.slice(0, 10));
+
+        buffer.dropFirst(50);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    void truncateThenAppend() {
+        LogBuffer buffer = new LogBuffer();
+        append(buffer, 0, 300);
+        buffer.truncate(150);
+        assertEquals(150, buffer.size());
+        assertEquals(commands(0, 150), buffer.slice(0, 150));
+
+        buffer.append(9, "replaced");
+        assertEquals(151, buffer.size());
+        assertEquals("replaced", buffer.slice(150, 151).get(0));
+        assertEquals(9, buffer.term(150));
+
+        /**Keeping as many or more entries than there are changes nothing*/
+        buffer.truncate(500);
+        assertEquals(151, buffer.size());
+
+        buffer.truncate(0);
+        assertEquals(0, buffer.size());
+        append(buffer, 0, 5);
+        assertEquals(commands(0, 5), buffer.slice(0, 5));
+    }
+
+    @Test
+    void sliceTakenBeforeTruncateIsNotOverwritten() {
+        LogBuffer buffer = new LogBuffer();
+        append(buffer, 0, 20);
+        LogSlice sent = buffer.slice(10, 20);
+
+        buffer.truncate(10);
+        for (int i = 0; i < 10; i++) buffer.append(7, "new-" + i);
+
+        assertEquals(commands(10, 20), sent);
+        assertEquals("new-0", buffer.slice(10, 11).get(0));
+    }
+
+    @Test
+    void truncateAfterDropFirst() {
+        LogBuffer buffer = new LogBuffer();
+        append(buffer, 0, 100);
+        buffer.dropFirst(40);
+        buffer.truncate(30);
+        assertEquals(30, buffer.size());
+        assertEquals(commands(40, 70), buffer.slice(0, 30));
+
+        append(buffer, 70, 80);
+        assertEquals(commands(40, 80), buffer.slice(0, 40));
+    }
+
+    @Test
+    void retainedBytesFollowDropAndTruncate() {
+        LogBuffer buffer = new LogBuffer();
+        for (int i = 0; i < 10; i++) buffer.append(1, "0123456789");
+        long perEntry = buffer.retainedBytes() / 10;
+        assertEquals(10 * perEntry, buffer.retainedBytes());
+
+        buffer.dropFirst(3);
+        assertEquals(7 * perEntry, buffer.retainedBytes());
+        buffer.truncate(5);
+        assertEquals(5 * perEntry, buffer.retainedBytes());
+
+        assertEquals(0, buffer.countToFit(5 * perEntry));
+        assertEquals(2, buffer.countToFit(3 * perEntry));
+        assertEquals(5, buffer.countToFit(0));
+    }
+}
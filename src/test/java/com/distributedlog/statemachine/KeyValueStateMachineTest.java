@@ -0,0 +1,110 @@
+package com.distributedlog.statemachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KeyValueStateMachineTest {
+
+    private static void apply(StateMachine machine, int index, String command) {
+        machine.apply(index, command.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void putAndOverwrite() {
+        KeyValueStateMachine machine = new KeyValueStateMachine();
+        apply(machine, 1, "x=5");
+        apply(machine, 2, " y = 24 ");
+        apply(machine, 3, "x=6");
+        apply(machine, 4, "clé=välue");
+
+        assertEquals("6", machine.query("x"));
+        assertEquals("24", machine.query("y"));
+        assertEquals("välue", machine.query("clé"));
+        assertNull(machine.query("z"));
+        assertNull(machine.query(null));
+        assertEquals(3, machine.size());
+    }
+
+    @Test
+    void commandsThatAreNotKeyValueAreSkipped() {
+        KeyValueStateMachine machine = new KeyValueStateMachine();
+        apply(machine, 1, "");
+        apply(machine, 2, "no separator");
+        apply(machine, 3, "=value");
+        apply(machine, 4, "  =value");
+        apply(machine, 5, "empty=");
+
+        assertEquals(4, machine.getSkipped());
+        assertEquals(1, machine.size());
+        assertEquals("", machine.query("empty"));
+    }
+
+    @Test
+    void growsPastTheInitialCapacity() {
+        KeyValueStateMachine machine = new KeyValueStateMachine();
+        for (int i = 0; i < 10_000; i++) apply(machine, i + 1, "key" + i + "=" + i);
+        for (int i = 0; i < 10_000; i += 2) apply(machine, 10_001 + i, "key" + i + "=even");
+
+        assertEquals(10_000, machine.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i % 2 == 0 ? "even" : String.valueOf(i), machine.query("key" + i));
+        }
+    }
+
+    @Test
+    void snapshotRoundTrip() {
+        KeyValueStateMachine machine = new KeyValueStateMachine();
+        for (int i = 0; i < 5_000; i++) apply(machine, i + 1, "key" + i + "=value" + i);
+        apply(machine, 5_001, "ünïcode=✓");
+        byte[] snapshot = machine.snapshot();
+
+        KeyValueStateMachine restored = new KeyValueStateMachine();
+        apply(restored, 1, "stale=gone");
+        restored.restore(snapshot);
+
+        assertEquals(5_001, restored.size());
+        assertNull(restored.query("stale"));
+        assertEquals("✓", restored.query("ünïcode"));
+        for (int i = 0; i < 5_000; i++) assertEquals("value" + i, restored.query("key" + i));
+
+        /**The restored table keeps taking writes*/
+        apply(restored, 5_002, "key0=changed");
+        apply(restored, 5_003, "new=entry");
+        assertEquals("changed", restored.query("key0"));
+        assertEquals(5_002, restored.size());
+    }
+
+    @Test
+    void restoreOfNothingEmptiesTheStore() {
+        KeyValueStateMachine machine = new KeyValueStateMachine();
+        apply(machine, 1, "x=5");
+        machine.restore(new byte[0]);
+        assertEquals(0, machine.size());
+        assertNull(machine.query("x"));
+
+        apply(machine, 2, "x=7");
+        machine.restore(null);
+        assertEquals(0, machine.size());
+
+        machine.restore(new KeyValueStateMachine().snapshot());
+        assertEquals(0, machine.size());
+    }
+
+    @Test
+    void corruptSnapshotIsRejected() {
+        KeyValueStateMachine machine = new KeyValueStateMachine();
+        apply(machine, 1, "x=5");
+        byte[] snapshot = machine.snapshot();
+        byte[] truncated = Arrays.copyOf(snapshot, snapshot.length - 1);
+
+        assertThrows(UncheckedIOException.class, () -> new KeyValueStateMachine().restore(truncated));
+        assertThrows(UncheckedIOException.class, () -> new KeyValueStateMachine().restore(new byte[]{-1, -1, -1, -1}));
+    }
+}
@@ -0,0 +1,285 @@
+package com.distributedlog.storage;
+
+import com.distributedlog.node.LogEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedLogStoreTest {
+    /**Small enough that a hundred entries span about ten segments*/
+    private static final long SEGMENT_BYTES = 200;
+
+    @TempDir
+    File dir;
+
+    private static List<LogEntry> entries(int term, int from, int to) {
+        List<LogEntry> entries = new ArrayList<>();
+        for (int i = from; i <= to; i++) entries.add(new LogEntry(term, "cmd-" + i));
+        return entries;
+    }
+
+    private static void appendInBatches(LogStore store, int term, int from, int to) throws IOException {
+        for (int i = from; i <= to; i += 7) store.append(entries(term, i, Math.min(i + 6, to)));
+    }
+
+    /**Reads fromIndex..toIndex back and checks every command and term against what was written*/
+    private static void assertEntries(LogStore store, int fromIndex, int toIndex, int... termChanges) throws IOException {
+        LogRange range = store.read(fromIndex, toIndex);
+        assertEquals(toIndex - fromIndex + 1, range.size());
+        for (int i = 0; i < range.size(); i++) {
+            int index = fromIndex + i;
+            String command = new String(range.getData(), range.getOffset(i), range.getLength(i), StandardCharsets.UTF_8);
+            assertEquals("cmd-" + index, command);
+            assertEquals(expectedTerm(index, termChanges), range.getTerm(i));
+            assertEquals(expectedTerm(index, termChanges), store.getTerm(index));
+        }
+    }
+
+    /**Term 1 up to the first change, then 2 from termChanges[0], 3 from termChanges[1] and so on*/
+    private static int expectedTerm(int index, int... termChanges) {
+        int term = 1;
+        for (int change : termChanges) {
+            if (index >= change) term++;
+        }
+        return term;
+    }
+
+    /**Base indexes of the segment files in the directory, in order*/
+    private int[] segmentBases() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(LogSegment.SUFFIX));
+        return Arrays.stream(files).mapToInt(LogSegment::parseBaseIndex).sorted().toArray();
+    }
+
+    private File segmentFile(int baseIndex) {
+        return new File(dir, LogSegment.fileName(baseIndex));
+    }
+
+    /**Cuts the last bytes off a file, the way a crash in the middle of a write leaves it*/
+    private static void tear(File file, int bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - bytes);
+        }
+    }
+
+    /**Flips a bit in the last byte of a file, inside the command of its last record*/
+    private static void corruptLastByte(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 1);
+        }
+    }
+
+    @Test
+    void appendRollsIntoNewSegments() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            assertEquals(1, store.getFirstIndex());
+            assertEquals(0, store.getLastIndex());
+
+            appendInBatches(store, 1, 1, 100);
+            assertEquals(1, store.getFirstIndex());
+            assertEquals(100, store.getLastIndex());
+            assertTrue(segmentBases().length > 5, "expected the log to roll, got " + Arrays.toString(segmentBases()));
+            assertEquals(1, segmentBases()[0]);
+            assertEntries(store, 1, 100);
+
+            /**A range crossing a segment boundary comes back in one piece*/
+            int boundary = segmentBases()[2];
+            assertEntries(store, boundary - 3, boundary + 3);
+        }
+    }
+
+    @Test
+    void syncedEntriesSurviveReopen() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            appendInBatches(store, 1, 1, 100);
+            store.sync();
+        }
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            assertEquals(1, store.getFirstIndex());
+            assertEquals(100, store.getLastIndex());
+            assertEntries(store, 1, 100);
+
+            store.append(entries(2, 101, 110));
+            assertEntries(store, 95, 110, 101);
+        }
+    }
+
+    @Test
+    void truncateSuffixAcrossSegmentBoundary() throws IOException {
+        int from;
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            appendInBatches(store, 1, 1, 100);
+            store.sync();
+            int[] bases = segmentBases();
+            from = bases[3] - 2;
+
+            store.truncateSuffix(from);
+            assertEquals(from - 1, store.getLastIndex());
+            int[] left = segmentBases();
+            assertEquals(bases[2], left[left.length - 1], "segments after the cut are deleted");
+
+            /**The sealed segment the cut landed in is the tail again and takes new entries*/
+            appendInBatches(store, 2, from, 120);
+            assertEquals(120, store.getLastIndex());
+            assertEntries(store, 1, 120, from);
+            store.sync();
+        }
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            assertEquals(120, store.getLastIndex());
+            assertEntries(store, 1, 120, from);
+        }
+    }
+
+    @Test
+    void truncateSuffixInsideTail() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir)) {
+            store.append(entries(1, 1, 20));
+            store.truncateSuffix(15);
+            assertEquals(14, store.getLastIndex());
+            store.append(entries(3, 15, 18));
+            assertEntries(store, 1, 18, 15, 15);
+            store.sync();
+        }
+        try (SegmentedLogStore store = new SegmentedLogStore(dir)) {
+            assertEquals(18, store.getLastIndex());
+            assertEntries(store, 1, 18, 15, 15);
+        }
+    }
+
+    @Test
+    void truncatePrefixDropsWholeSegmentsOnSync() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            appendInBatches(store, 1, 1, 100);
+            store.sync();
+            int[] bases = segmentBases();
+            int keptBase = Arrays.stream(bases).filter(b -> b <= 51).max().getAsInt();
+
+            store.truncatePrefix(50);
+            assertEquals(keptBase, store.getFirstIndex());
+            assertEquals(100, store.getLastIndex());
+            assertEquals(bases.length, segmentBases().length, "files stay until the next sync");
+
+            store.sync();
+            assertEquals(keptBase, segmentBases()[0]);
+            assertEntries(store, keptBase, 100);
+
+            /**The tail is never dropped, even when the whole log is covered*/
+            store.truncatePrefix(1000);
+            store.sync();
+            assertEquals(1, segmentBases().length);
+            assertEquals(100, store.getLastIndex());
+        }
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            assertEquals(segmentBases()[0], store.getFirstIndex());
+            assertEquals(100, store.getLastIndex());
+        }
+    }
+
+    @Test
+    void resetContinuesAtTheGivenIndex() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            appendInBatches(store, 1, 1, 50);
+            store.sync();
+            store.reset(201);
+            assertEquals(201, store.getFirstIndex());
+            assertEquals(200, store.getLastIndex());
+            store.sync();
+            assertEquals(201, segmentBases()[0]);
+
+            store.append(entries(2, 201, 205));
+            store.sync();
+        }
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            assertEquals(201, store.getFirstIndex());
+            assertEquals(205, store.getLastIndex());
+            assertFalse(Arrays.stream(segmentBases()).anyMatch(b -> b < 201));
+            assertEntries(store, 201, 205, 1);
+        }
+    }
+
+    @Test
+    void tornTailRecordIsCutOnReopen() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir)) {
+            store.append(entries(1, 1, 30));
+            store.sync();
+        }
+        tear(segmentFile(1), 3);
+        try (SegmentedLogStore store = new SegmentedLogStore(dir)) {
+            assertEquals(29, store.getLastIndex());
+            assertEntries(store, 1, 29);
+
+            /**The torn record is gone from the file, so its index is written again cleanly*/
+            store.append(entries(2, 30, 31));
+            store.sync();
+        }
+        try (SegmentedLogStore store = new SegmentedLogStore(dir)) {
+            assertEquals(31, store.getLastIndex());
+            assertEntries(store, 1, 31, 30);
+        }
+    }
+
+    @Test
+    void corruptTailRecordIsCutOnReopen() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir)) {
+            store.append(entries(1, 1, 30));
+            store.sync();
+        }
+        corruptLastByte(segmentFile(1));
+        try (SegmentedLogStore store = new SegmentedLogStore(dir)) {
+            assertEquals(29, store.getLastIndex());
+            assertEntries(store, 1, 29);
+        }
+    }
+
+    @Test
+    void sealedSegmentPromotedToTailIsValidated() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            appendInBatches(store, 1, 1, 100);
+            store.sync();
+        }
+        /**
+         * A gap after bases[2] makes it the tail once its seal-marked index has been trusted; a record damaged without
+         * changing the file size would go unnoticed unless the promoted segment is validated
+         */
+        int[] bases = segmentBases();
+        LogSegment.open(segmentFile(bases[3]), true).delete();
+        corruptLastByte(segmentFile(bases[2]));
+
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            assertEquals(bases[3] - 2, store.getLastIndex());
+            assertEntries(store, 1, bases[3] - 2);
+            store.append(entries(2, bases[3] - 1, bases[3] + 5));
+            assertEntries(store, bases[2], bases[3] + 5, bases[3] - 1);
+        }
+    }
+
+    @Test
+    void segmentsAfterAGapAreDiscarded() throws IOException {
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            appendInBatches(store, 1, 1, 100);
+            store.sync();
+        }
+        int[] bases = segmentBases();
+        LogSegment.open(segmentFile(bases[3]), true).delete();
+
+        try (SegmentedLogStore store = new SegmentedLogStore(dir, SEGMENT_BYTES)) {
+            assertEquals(1, store.getFirstIndex());
+            assertEquals(bases[3] - 1, store.getLastIndex());
+            assertEntries(store, 1, bases[3] - 1);
+            assertEquals(3, segmentBases().length);
+        }
+    }
+}